@@ -1,5 +1,7 @@
 package com.mds.apg;
 
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
@@ -47,4 +49,14 @@ public class Activator extends AbstractUIPlugin {
 		return plugin;
 	}
 
+	/**
+	 * Logs a problem the plug-in works around, such as a cache it can't use,
+	 * so that it still shows in the error log
+	 */
+	public static void logWarning(String message, Throwable exception) {
+		Activator activator = getDefault();
+		if (activator != null)
+			activator.getLog().log(new Status(IStatus.WARNING, PLUGIN_ID, message, exception));
+	}
+
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.actions;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.action.IAction;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IWorkbenchWindow;
+import org.eclipse.ui.IWorkbenchWindowActionDelegate;
+
+import com.mds.apg.Activator;
+import com.mds.apg.wizards.BlobStore;
+import com.mds.apg.wizards.FrameworkJarCache;
+
+/**
+ * Re-hashes the shared PhoneGap/Sencha file store and reads the shared
+ * phonegap.jar files through, and drops damaged entries. Files are then
+ * re-ingested from the installations, and jars built again, on next use.
+ */
+public class VerifyCacheAction implements IWorkbenchWindowActionDelegate {
+
+    private IWorkbenchWindow mWindow;
+
+    /* (non-Javadoc)
+     * @see org.eclipse.ui.IActionDelegate#run(org.eclipse.jface.action.IAction)
+     */
+    public void run(IAction action) {
+        Job job = new Job("Verifying PhoneGap file cache") {
+            @Override
+            protected IStatus run(IProgressMonitor monitor) {
+                try {
+                    List<String> corrupt = BlobStore.getDefault().verify();
+                    corrupt.addAll(FrameworkJarCache.verify());
+                    report(corrupt.isEmpty() ? "The PhoneGap file cache is intact."
+                            : corrupt.size() + " damaged file(s) were removed from the "
+                                    + "PhoneGap file cache. They will be restored from the "
+                                    + "installations when next needed.");
+                    return Status.OK_STATUS;
+                } catch (IOException e) {
+                    return new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                            "Verifying the PhoneGap file cache failed", e);
+                }
+            }
+        };
+        job.setUser(true);
+        job.schedule();
+    }
+
+    private void report(final String message) {
+        final Shell shell = mWindow.getShell();
+        if (shell == null || shell.isDisposed())
+            return;
+        shell.getDisplay().asyncExec(new Runnable() {
+            public void run() {
+                if (!shell.isDisposed())
+                    MessageDialog.openInformation(shell, "PhoneGap", message);
+            }
+        });
+    }
+
+    /* (non-Javadoc)
+     * @see org.eclipse.ui.IActionDelegate#selectionChanged(IAction, ISelection)
+     */
+    public void selectionChanged(IAction action, ISelection selection) {
+    }
+
+    /* (non-Javadoc)
+     * @see org.eclipse.ui.IWorkbenchWindowActionDelegate#dispose()
+     */
+    public void dispose() {
+    }
+
+    /* (non-Javadoc)
+     * @see org.eclipse.ui.IWorkbenchWindowActionDelegate#init(org.eclipse.ui.IWorkbenchWindow)
+     */
+    public void init(IWorkbenchWindow window) {
+        mWindow = window;
+    }
+}
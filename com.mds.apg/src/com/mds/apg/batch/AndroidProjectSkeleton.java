@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.batch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.FileLocator;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubProgressMonitor;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.MultiRule;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+
+import com.mds.apg.Activator;
+import com.mds.apg.wizards.TextRewriter;
+
+/**
+ * Creates the Android project that the ADT new project wizard would create,
+ * without any UI: manifest, main activity, layout, strings, default.properties
+ * and the Java and Android natures. PhoneGap is added to it afterwards.
+ */
+class AndroidProjectSkeleton {
+
+    private static final String TEMPLATE_DIR = "templates/skeleton/";
+    private static final String ANDROID_NATURE = "com.android.ide.eclipse.adt.AndroidNature";
+    private static final String ANDROID_CONTAINER = "com.android.ide.eclipse.adt.ANDROID_FRAMEWORK";
+
+    private final ProjectSpec mSpec;
+    private final TextRewriter mRewriter = new TextRewriter();
+
+    AndroidProjectSkeleton(ProjectSpec spec) {
+        mSpec = spec;
+        mRewriter.addLiteral("%PACKAGE%", spec.mPackage);
+        mRewriter.addLiteral("%ACTIVITY%", spec.mActivity);
+        mRewriter.addLiteral("%APP_NAME%", spec.mName);
+        mRewriter.addLiteral("%TARGET%", spec.mTarget);
+        mRewriter.addLiteral("%MIN_SDK%", spec.mMinSdk);
+    }
+
+    /**
+     * Creates and opens the project in the workspace. Only creating the
+     * project needs the workspace root; the rest is done holding just the
+     * new project, so it doesn't wait for other projects being populated.
+     *
+     * @throws CoreException if a project of that name exists already, or it
+     *             can't be created
+     */
+    IProject create(IProgressMonitor monitor) throws CoreException {
+        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+        final IProject project = workspace.getRoot().getProject(mSpec.mName);
+        if (project.exists()) {
+            throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID, "Project "
+                    + mSpec.mName + " already exists"));
+        }
+        monitor.beginTask("Creating " + mSpec.mName, 10);
+        try {
+            workspace.run(new IWorkspaceRunnable() {
+                public void run(IProgressMonitor monitor) throws CoreException {
+                    project.create(monitor);
+                }
+            }, workspace.getRuleFactory().createRule(project), IWorkspace.AVOID_UPDATE,
+                    new SubProgressMonitor(monitor, 1));
+
+            ISchedulingRule rule = MultiRule.combine(project, workspace.getRuleFactory()
+                    .modifyRule(project));
+            workspace.run(new IWorkspaceRunnable() {
+                public void run(IProgressMonitor monitor) throws CoreException {
+                    fillProject(project, monitor);
+                }
+            }, rule, IWorkspace.AVOID_UPDATE, new SubProgressMonitor(monitor, 9));
+        } finally {
+            monitor.done();
+        }
+        return project;
+    }
+
+    private void fillProject(IProject project, IProgressMonitor monitor) throws CoreException {
+        monitor.beginTask("Creating " + mSpec.mName, 9);
+        try {
+            project.open(new SubProgressMonitor(monitor, 1));
+
+            String packagePath = "src/" + mSpec.mPackage.replace('.', '/');
+            for (String folder : new String[] {
+                    packagePath, "gen", "assets", "res/drawable", "res/layout", "res/values"
+            }) {
+                createFolders(project.getFolder(folder));
+            }
+            createFile(project, "AndroidManifest.xml", "AndroidManifest.xml.template");
+            createFile(project, "default.properties", "default.properties.template");
+            createFile(project, packagePath + "/" + mSpec.mActivity + ".java",
+                    "Activity.java.template");
+            createFile(project, "res/layout/main.xml", "main.xml.template");
+            createFile(project, "res/values/strings.xml", "strings.xml.template");
+            monitor.worked(3);
+
+            // Setting the natures configures them, which adds the ADT builders
+            IProjectDescription description = project.getDescription();
+            description.setNatureIds(new String[] {
+                    JavaCore.NATURE_ID, ANDROID_NATURE
+            });
+            project.setDescription(description, new SubProgressMonitor(monitor, 2));
+
+            IPath path = project.getFullPath();
+            IJavaProject javaProject = JavaCore.create(project);
+            javaProject.setRawClasspath(new IClasspathEntry[] {
+                    JavaCore.newSourceEntry(path.append("src")),
+                    JavaCore.newSourceEntry(path.append("gen")),
+                    JavaCore.newContainerEntry(new Path(ANDROID_CONTAINER))
+            }, path.append("bin"), new SubProgressMonitor(monitor, 3));
+        } finally {
+            monitor.done();
+        }
+    }
+
+    private static void createFolders(IFolder folder) throws CoreException {
+        if (folder.exists())
+            return;
+        if (folder.getParent() instanceof IFolder)
+            createFolders((IFolder) folder.getParent());
+        folder.create(true /* force */, true /* local */, null);
+    }
+
+    private void createFile(IProject project, String path, String template)
+            throws CoreException {
+        String content = mRewriter.rewrite(readTemplate(template));
+        try {
+            project.getFile(path).create(new ByteArrayInputStream(content.getBytes("UTF-8")),
+                    true /* force */, null);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always there
+        }
+    }
+
+    private static String readTemplate(String name) throws CoreException {
+        try {
+            InputStream in = FileLocator.openStream(Activator.getDefault().getBundle(), new Path(
+                    TEMPLATE_DIR + name), false);
+            try {
+                Reader reader = new InputStreamReader(in, "UTF-8");
+                StringBuilder template = new StringBuilder();
+                char[] buffer = new char[4096];
+                for (int n; (n = reader.read(buffer)) > 0;)
+                    template.append(buffer, 0, n);
+                return template.toString();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                    "AndroidProjectSkeleton: " + "can't read template " + name, e));
+        }
+    }
+}
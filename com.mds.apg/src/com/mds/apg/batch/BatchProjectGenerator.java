@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.SubProgressMonitor;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+
+import com.mds.apg.wizards.FileCopy;
+import com.mds.apg.wizards.PhonegapProjectPopulate;
+
+/**
+ * Creates the PhoneGap projects of a batch file in one headless workspace
+ * session, for build servers that scaffold many test apps:
+ *
+ * <pre>
+ * eclipse -nosplash -application com.mds.apg.batch -data &lt;workspace&gt; &lt;batch file&gt;
+ * </pre>
+ *
+ * See ProjectSpec.read for the projects of the batch file. Two more keys
+ * set how much runs at once:
+ * <ul>
+ * <li>concurrency - the number of projects generated at the same time, 1 by
+ * default. Each project's workspace changes are serialized by its
+ * scheduling rule; only creating a project locks the whole workspace, for
+ * a moment. Different projects otherwise only share the file I/O threads.
+ * <li>ioThreads - the number of those threads, one per processor by default
+ * </ul>
+ * The time taken by each project is printed as it is done, then the
+ * throughput in projects per minute and the concurrency reached: the time
+ * all projects took, summed, over the time the batch took. The exit code is
+ * 1 if any project failed.
+ */
+public class BatchProjectGenerator implements IApplication {
+
+    private static final Integer EXIT_FAILED = Integer.valueOf(1);
+
+    public Object start(IApplicationContext context) throws Exception {
+        String[] args = (String[]) context.getArguments().get(
+                IApplicationContext.APPLICATION_ARGS);
+        if (args == null || args.length != 1) {
+            System.err.println("Usage: eclipse -nosplash -application com.mds.apg.batch "
+                    + "-data <workspace> <batch file>");
+            return EXIT_FAILED;
+        }
+        List<ProjectSpec> specs;
+        int concurrency;
+        try {
+            Properties batch = ProjectSpec.load(new File(args[0]));
+            specs = ProjectSpec.read(batch);
+            concurrency = Integer.parseInt(batch.getProperty("concurrency", "1").trim());
+            String ioThreads = batch.getProperty("ioThreads");
+            if (ioThreads != null)
+                FileCopy.setParallelism(Integer.parseInt(ioThreads.trim()));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return EXIT_FAILED;
+        } catch (NumberFormatException e) {
+            System.err.println("BatchProjectGenerator: " + "not a number: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+
+        long start = System.currentTimeMillis();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong busy = new AtomicLong(); // project time summed
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(
+                concurrency, specs.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(specs.size());
+            for (final ProjectSpec spec : specs) {
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        if (!generateTimed(spec, busy))
+                            failures.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        long generated = System.currentTimeMillis();
+
+        // The projects are built in the background, and saved with the workspace
+        Job.getJobManager().join(ResourcesPlugin.FAMILY_MANUAL_BUILD, null);
+        ResourcesPlugin.getWorkspace().save(true, null);
+
+        int succeeded = specs.size() - failures.get();
+        long elapsed = Math.max(1, generated - start);
+        System.out.println(succeeded + " of " + specs.size() + " projects generated in "
+                + (generated - start) + " ms ("
+                + String.format("%.1f", succeeded * 60000.0 / elapsed)
+                + " projects per minute, "
+                + String.format("%.1f", (double) busy.get() / elapsed)
+                + " at a time on average), built and saved in "
+                + (System.currentTimeMillis() - generated) + " ms");
+        return failures.get() == 0 ? IApplication.EXIT_OK : EXIT_FAILED;
+    }
+
+    public void stop() {
+        // Nothing to interrupt; the generator finishes the project at hand
+    }
+
+    /** Generates the project, prints how long it took and adds that to busy */
+    private static boolean generateTimed(ProjectSpec spec, AtomicLong busy) {
+        long start = System.currentTimeMillis();
+        try {
+            generate(spec, new NullProgressMonitor());
+            System.out.println(spec.mName + ": " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } catch (CoreException e) {
+            System.out.println(spec.mName + ": failed after "
+                    + (System.currentTimeMillis() - start) + " ms: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.out.println(spec.mName + ": failed after "
+                    + (System.currentTimeMillis() - start) + " ms: " + e);
+        } finally {
+            busy.addAndGet(System.currentTimeMillis() - start);
+        }
+        return false;
+    }
+
+    /** Creates the Android project, then adds PhoneGap to it as the wizard does */
+    static void generate(ProjectSpec spec, IProgressMonitor monitor) throws CoreException {
+        monitor.beginTask("Generating " + spec.mName, 100);
+        try {
+            IProject project = new AndroidProjectSkeleton(spec).create(new SubProgressMonitor(
+                    monitor, 20));
+            PhonegapProjectPopulate.populate(spec.toPageInfo(project), new SubProgressMonitor(
+                    monitor, 80));
+        } finally {
+            monitor.done();
+        }
+    }
+}
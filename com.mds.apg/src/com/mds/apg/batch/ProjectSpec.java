@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.core.resources.IProject;
+
+import com.mds.apg.wizards.PageInfo;
+
+/**
+ * One project of a batch file: what the wizard pages would have asked for,
+ * plus what the ADT page would have asked for.
+ */
+class ProjectSpec {
+
+    final String mName;
+    final String mPackage;
+    final String mActivity;
+    final String mTarget;
+    final String mMinSdk;
+    final String mPhonegapDirectory;
+    final String mSourceDirectory;
+    final String mSenchaDirectory;
+    final boolean mSencha;
+    final boolean mKitchenSink;
+
+    private ProjectSpec(String name, Properties batch) throws IOException {
+        mName = name;
+        mPackage = require(batch, name, "package");
+        mActivity = get(batch, name, "activity", "Main");
+        mTarget = get(batch, name, "target", "android-8");
+        mMinSdk = get(batch, name, "minSdk", "8");
+        mPhonegapDirectory = require(batch, name, "phonegap");
+        mSenchaDirectory = get(batch, name, "sencha", "");
+        mKitchenSink = Boolean.parseBoolean(get(batch, name, "kitchensink", "false"));
+        mSencha = mKitchenSink || mSenchaDirectory.length() > 0;
+
+        // The same defaults as the wizard
+        if (mKitchenSink) {
+            mSourceDirectory = mSenchaDirectory + "/examples/kitchensink";
+        } else {
+            mSourceDirectory = get(batch, name, "source", mPhonegapDirectory + "/example");
+        }
+        if (mKitchenSink && mSenchaDirectory.length() == 0)
+            throw new IOException("ProjectSpec: " + name + ".kitchensink needs a sencha directory");
+    }
+
+    /** Reads a batch file, which is in properties format */
+    static Properties load(File batchFile) throws IOException {
+        Properties batch = new Properties();
+        InputStream in = new FileInputStream(batchFile);
+        try {
+            batch.load(in);
+        } finally {
+            in.close();
+        }
+        return batch;
+    }
+
+    /**
+     * The projects of a batch file. "projects" lists the project names,
+     * separated by commas. Every other project key is either
+     * &lt;project&gt;.&lt;key&gt; or just &lt;key&gt;, which is the default for
+     * all projects:
+     * <ul>
+     * <li>package - Java package of the application, required
+     * <li>activity - main activity class, Main by default
+     * <li>target, minSdk - Android target, android-8 and 8 by default
+     * <li>phonegap - the PhoneGap installation, required
+     * <li>source - the www sources, the PhoneGap example by default
+     * <li>sencha - the Sencha Touch installation, if Sencha is wanted
+     * <li>kitchensink - true for the Sencha kitchen sink as the sources
+     * </ul>
+     */
+    static List<ProjectSpec> read(Properties batch) throws IOException {
+        List<ProjectSpec> specs = new ArrayList<ProjectSpec>();
+        for (String name : batch.getProperty("projects", "").split(",")) {
+            name = name.trim();
+            if (name.length() > 0)
+                specs.add(new ProjectSpec(name, batch));
+        }
+        if (specs.isEmpty())
+            throw new IOException("ProjectSpec: " + "no projects listed");
+        return specs;
+    }
+
+    /** What the wizard hands to the population, once the project exists */
+    PageInfo toPageInfo(IProject project) {
+        return new PageInfo(mSourceDirectory, mPhonegapDirectory, project.getLocation()
+                .toString() + "/", project, mSenchaDirectory, mSencha, mKitchenSink);
+    }
+
+    private static String get(Properties batch, String name, String key, String defaultValue) {
+        String value = batch.getProperty(name + "." + key, batch.getProperty(key, defaultValue));
+        return value.trim();
+    }
+
+    private static String require(Properties batch, String name, String key) throws IOException {
+        String value = get(batch, name, key, "");
+        if (value.length() == 0)
+            throw new IOException("ProjectSpec: " + "no " + key + " given for " + name);
+        return value;
+    }
+}
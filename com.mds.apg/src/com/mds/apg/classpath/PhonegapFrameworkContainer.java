@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.classpath;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.jdt.core.IClasspathContainer;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jface.preference.IPreferenceStore;
+
+import com.mds.apg.Activator;
+
+/**
+ * The PhoneGap framework jars of one build of a PhoneGap version, shared by
+ * every project that has
+ * com.mds.apg.PHONEGAP_FRAMEWORK/&lt;version&gt;/&lt;build&gt; on its
+ * classpath. A build is a phonegap.jar compiled against one android.jar, so
+ * projects on different Android targets get containers of their own. JDT
+ * indexes the shared jars once, however many projects use them. Which jars
+ * a build stands for is kept in the preferences, so the container resolves
+ * without rebuilding anything.
+ */
+public class PhonegapFrameworkContainer implements IClasspathContainer {
+
+    public static final String CONTAINER_ID = "com.mds.apg.PHONEGAP_FRAMEWORK";
+
+    private static final String LIBRARIES = ".libraries";
+    private static final String SOURCE = ".source";
+
+    private final IPath mPath;
+    private final IClasspathEntry[] mEntries;
+
+    private PhonegapFrameworkContainer(IPath path, IClasspathEntry[] entries) {
+        mPath = path;
+        mEntries = entries;
+    }
+
+    public IClasspathEntry[] getClasspathEntries() {
+        return mEntries;
+    }
+
+    public String getDescription() {
+        return "PhoneGap Framework " + mPath.segment(1);
+    }
+
+    public int getKind() {
+        return K_APPLICATION;
+    }
+
+    public IPath getPath() {
+        return mPath;
+    }
+
+    /** The container path for a build of a PhoneGap version */
+    public static IPath getPath(String version, String build) {
+        return new Path(CONTAINER_ID).append(version).append(build);
+    }
+
+    /**
+     * Makes the build stand for the given jars, with source as their source
+     * attachment. The build names the content of the jars, so this only
+     * changes what it stands for when the installation moved; the projects
+     * using the build are then rebound in one go. Other builds of the version
+     * are left alone.
+     *
+     * @return the container path to put on a project's classpath
+     */
+    public static synchronized IPath bind(String version, String build, File[] libraries,
+            File source, IProgressMonitor monitor) throws JavaModelException {
+        StringBuilder value = new StringBuilder();
+        for (File library : libraries) {
+            if (value.length() > 0)
+                value.append(File.pathSeparatorChar);
+            value.append(library.getPath());
+        }
+        IPreferenceStore store = Activator.getDefault().getPreferenceStore();
+        IPath path = getPath(version, build);
+        String key = getKey(path);
+        if (value.toString().equals(store.getString(key + LIBRARIES))
+                && source.getPath().equals(store.getString(key + SOURCE)))
+            return path;
+
+        store.setValue(key + LIBRARIES, value.toString());
+        store.setValue(key + SOURCE, source.getPath());
+        rebind(path, monitor);
+        return path;
+    }
+
+    /**
+     * Moves a project to another PhoneGap build, replacing the container
+     * entry on its classpath.
+     */
+    public static void switchBuild(IJavaProject project, IPath path, IProgressMonitor monitor)
+            throws JavaModelException {
+        IClasspathEntry[] entries = project.getRawClasspath();
+        IClasspathEntry[] newEntries = new IClasspathEntry[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            newEntries[i] = isContainer(entries[i]) ? JavaCore.newContainerEntry(path)
+                    : entries[i];
+        }
+        project.setRawClasspath(newEntries, monitor);
+    }
+
+    /**
+     * The container for the path, or null if its build has never been
+     * bound.
+     */
+    static PhonegapFrameworkContainer resolve(IPath path) {
+        IPreferenceStore store = Activator.getDefault().getPreferenceStore();
+        String key = getKey(path);
+        String libraries = store.getString(key + LIBRARIES);
+        if (libraries.length() == 0)
+            return null;
+        String source = store.getString(key + SOURCE);
+        IPath sourcePath = source.length() == 0 ? null : new Path(source);
+
+        List<IClasspathEntry> entries = new ArrayList<IClasspathEntry>();
+        for (String library : libraries.split(File.pathSeparator)) {
+            entries.add(JavaCore.newLibraryEntry(new Path(library), sourcePath, null));
+        }
+        return new PhonegapFrameworkContainer(path, entries.toArray(new IClasspathEntry[entries
+                .size()]));
+    }
+
+    /** Hands the new container to every project that uses the path */
+    private static void rebind(IPath path, IProgressMonitor monitor) throws JavaModelException {
+        List<IJavaProject> users = new ArrayList<IJavaProject>();
+        for (IJavaProject project : JavaCore.create(ResourcesPlugin.getWorkspace().getRoot())
+                .getJavaProjects()) {
+            for (IClasspathEntry entry : project.getRawClasspath()) {
+                if (isContainer(entry) && entry.getPath().equals(path)) {
+                    users.add(project);
+                    break;
+                }
+            }
+        }
+        if (users.isEmpty())
+            return;
+        IClasspathContainer container = resolve(path);
+        IClasspathContainer[] containers = new IClasspathContainer[users.size()];
+        for (int i = 0; i < containers.length; i++)
+            containers[i] = container;
+        JavaCore.setClasspathContainer(path, users.toArray(new IJavaProject[users.size()]),
+                containers, monitor);
+    }
+
+    /** The preference key of a container path: the path itself */
+    private static String getKey(IPath path) {
+        return CONTAINER_ID + "/" + path.removeFirstSegments(1).toString();
+    }
+
+    private static boolean isContainer(IClasspathEntry entry) {
+        return entry.getEntryKind() == IClasspathEntry.CPE_CONTAINER
+                && CONTAINER_ID.equals(entry.getPath().segment(0));
+    }
+}
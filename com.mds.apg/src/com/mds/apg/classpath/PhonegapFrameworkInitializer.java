@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.classpath;
+
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.jdt.core.ClasspathContainerInitializer;
+import org.eclipse.jdt.core.IClasspathContainer;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaCore;
+
+/**
+ * Resolves com.mds.apg.PHONEGAP_FRAMEWORK/&lt;version&gt;/&lt;build&gt;
+ * containers when JDT first needs them.
+ */
+public class PhonegapFrameworkInitializer extends ClasspathContainerInitializer {
+
+    @Override
+    public void initialize(IPath containerPath, IJavaProject project) throws CoreException {
+        // An unknown build resolves to nothing, and JDT reports it on the project
+        JavaCore.setClasspathContainer(containerPath, new IJavaProject[] {
+            project
+        }, new IClasspathContainer[] {
+            PhonegapFrameworkContainer.resolve(containerPath)
+        }, null);
+    }
+
+    @Override
+    public String getDescription(IPath containerPath, IJavaProject project) {
+        return "PhoneGap Framework " + containerPath.segment(1);
+    }
+}
@@ -28,11 +28,15 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.ScrolledComposite;
 import org.eclipse.swt.events.ControlAdapter;
 import org.eclipse.swt.events.ControlEvent;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Group;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 
@@ -57,6 +61,7 @@ public class AndroidPgProjectCreationPage extends WizardPage {
     protected final static String USE_EXAMPLE_DIR = com.mds.apg.Activator.PLUGIN_ID + ".example";
     protected final static String SENCHA_DIR = com.mds.apg.Activator.PLUGIN_ID + ".senchadir";    
     protected final static String SENCHA_CHECK = com.mds.apg.Activator.PLUGIN_ID + ".senchacheck";
+    protected final static String BACKGROUND = com.mds.apg.Activator.PLUGIN_ID + ".background";
 
     protected IPreferenceStore doGetPreferenceStore() {
         return com.mds.apg.Activator.getDefault().getPreferenceStore();
@@ -68,19 +73,44 @@ public class AndroidPgProjectCreationPage extends WizardPage {
     protected static String sSenchaPathCache = "";
     protected static boolean sUseFromExample = false;
     protected static boolean sSenchaCheck = false;
+    protected static boolean sBackground = false;
 
     protected final static int MSG_NONE = 0;
     protected final static int MSG_WARNING = 1;
     protected final static int MSG_ERROR = 2;
+    protected final static int MSG_PENDING = 4;
+
+    /** How long typing must pause before the page is validated, in ms */
+    private static final int VALIDATION_DELAY = 300;
 
     // page sub-sections
  
     private PagePhonegapPathSet mPhonegapDialog;
     private PageSencha mSenchaDialog;
     private PageInitContents mInitContentsDialog;
+    private Button mBackgroundCheck;
     
     protected Group mContentsSection; // Manipulate Contents Section visibility
 
+    private Display mDisplay;
+
+    /** Validates the page once typing has paused */
+    private final Runnable mDelayedValidation = new Runnable() {
+        public void run() {
+            Control control = getControl();
+            if (control != null && !control.isDisposed())
+                validatePageComplete();
+        }
+    };
+
+    /** Runs on the probe thread when a directory turned out different */
+    private final Runnable mProbeChanged = new Runnable() {
+        public void run() {
+            if (!mDisplay.isDisposed())
+                mDisplay.asyncExec(mDelayedValidation);
+        }
+    };
+
     /**
      * Creates a new project creation wizard page.
      */
@@ -96,6 +126,7 @@ public class AndroidPgProjectCreationPage extends WizardPage {
         sUseFromExample = doGetPreferenceStore().getString(USE_EXAMPLE_DIR) != "" ; // returns false if unset
         sSenchaPathCache = doGetPreferenceStore().getString(SENCHA_DIR);        
         sSenchaCheck = doGetPreferenceStore().getString(SENCHA_CHECK) != "" ; // returns false if unset
+        sBackground = doGetPreferenceStore().getString(BACKGROUND) != "" ; // returns false if unset
     }
 
     /**
@@ -126,6 +157,7 @@ public class AndroidPgProjectCreationPage extends WizardPage {
         scrolledComposite.setExpandVertical(true);
         initializeDialogUnits(parent);
 
+        mDisplay = parent.getDisplay();
         final Composite composite = new Composite(scrolledComposite, SWT.NULL);
         composite.setFont(parent.getFont());
         scrolledComposite.setContent(composite);
@@ -138,6 +170,20 @@ public class AndroidPgProjectCreationPage extends WizardPage {
         mInitContentsDialog = new PageInitContents(this, composite);
         mInitContentsDialog.enableLocationWidgets();          // Update state the first time
 
+        // Check box for letting the wizard close while the project is populated
+        mBackgroundCheck = new Button(composite, SWT.CHECK);
+        mBackgroundCheck.setText("Populate the project in the background");
+        mBackgroundCheck.setSelection(sBackground);
+        mBackgroundCheck.setToolTipText("Check to close the wizard at once and copy the PhoneGap\n"
+                + "files as a background job. Problems are shown in the Problems view");
+        mBackgroundCheck.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(SelectionEvent e) {
+                sBackground = mBackgroundCheck.getSelection();
+                doGetPreferenceStore().setValue(BACKGROUND, sBackground ? "true" : "");
+            }
+        });
+
         scrolledComposite.addControlListener(new ControlAdapter() {
             @Override
             public void controlResized(ControlEvent e) {
@@ -186,6 +232,11 @@ public class AndroidPgProjectCreationPage extends WizardPage {
         return mSenchaDialog.useSenchaKitchenSink();
     }
 
+    /** Should the wizard close before the project is populated? */
+    protected boolean populateInBackground() {
+        return mBackgroundCheck.getSelection();
+    }
+
 
     // --- UI Callbacks ----
 
@@ -217,7 +268,8 @@ public class AndroidPgProjectCreationPage extends WizardPage {
         }
 
         // Return false if there's an error so that the finish button be disabled.
-        return (status & MSG_ERROR) == 0;
+        // The same goes while a directory is still being looked at.
+        return (status & (MSG_ERROR | MSG_PENDING)) == 0;
     }
 
     /**
@@ -227,11 +279,34 @@ public class AndroidPgProjectCreationPage extends WizardPage {
         setPageComplete(validatePage());
     }
 
+    /**
+     * Validates the page once the user stops typing. Finish stays disabled
+     * until then.
+     */
+    protected void scheduleValidation() {
+        setPageComplete(false);
+        mDisplay.timerExec(VALIDATION_DELAY, mDelayedValidation);
+    }
+
+    /**
+     * What is known about a directory, without touching the file system on
+     * the UI thread. Returns null if the directory hasn't been looked at yet;
+     * the page validates itself again when it has.
+     */
+    protected DirectoryProbe probeDirectory(String path) {
+        return DirectoryProbe.get(path, mProbeChanged);
+    }
+
+    /** Status for a directory that is still being looked at */
+    protected int setPending(String path) {
+        return setStatus("Checking " + path + "...", MSG_PENDING);
+    }
+
 
     /**
      * Sets the error message for the wizard with the given message icon.
      *
-     * @param message The wizard message type, one of MSG_ERROR or MSG_WARNING.
+     * @param message The wizard message type, one of MSG_ERROR, MSG_WARNING or MSG_PENDING.
      * @return As a convenience, always returns messageType so that the caller can return
      *         immediately.
      */
@@ -240,7 +315,8 @@ public class AndroidPgProjectCreationPage extends WizardPage {
             setErrorMessage(null);
             setMessage(null);
         } else if (!message.equals(getMessage())) {
-            setMessage(message, messageType == MSG_WARNING ? WizardPage.WARNING : WizardPage.ERROR);
+            setMessage(message, messageType == MSG_WARNING ? WizardPage.WARNING
+                    : messageType == MSG_PENDING ? WizardPage.INFORMATION : WizardPage.ERROR);
         }
         return messageType;
     }
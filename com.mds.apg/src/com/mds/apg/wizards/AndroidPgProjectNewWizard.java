@@ -22,26 +22,27 @@
 
 package com.mds.apg.wizards;
 
-import java.io.File;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.List;
 
 import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceStatus;
 import org.eclipse.core.resources.IWorkspace;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.core.runtime.Platform;
 import org.eclipse.jface.dialogs.ErrorDialog;
 import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.viewers.IStructuredSelection;
 
 import org.eclipse.ui.INewWizard;
 import org.eclipse.ui.IWorkbench;
-import org.eclipse.ui.actions.WorkspaceModifyOperation;
 
 import com.android.ide.eclipse.adt.internal.wizards.newproject.NewProjectWizard;
 
@@ -79,12 +80,18 @@ public class AndroidPgProjectNewWizard extends NewProjectWizard implements INewW
      */
     @Override
     public boolean performFinish() {
-        String[] preAndroidCreateDirectoryList = getWorkspaceDirectoryList();
-        if (!super.performFinish() || super.getPackageName() == "") return false;
-        String[] postAndroidCreateDirectoryList = getWorkspaceDirectoryList();
+        // Watch for the project ADT creates rather than listing the workspace
+        NewProjectListener listener = new NewProjectListener();
+        IWorkspace workspace = ResourcesPlugin.getWorkspace();
+        workspace.addResourceChangeListener(listener, IResourceChangeEvent.POST_CHANGE);
+        try {
+            if (!super.performFinish() || super.getPackageName() == "") return false;
+        } finally {
+            workspace.removeResourceChangeListener(listener);
+        }
 
-        //  should be one new file corresponding to the new Android project
-        mNewAndroidProject = findNewAndroidProject(preAndroidCreateDirectoryList, postAndroidCreateDirectoryList);
+        //  should be one new project - the new Android project
+        mNewAndroidProject = listener.getNewProject();
 
         if (mNewAndroidProject == null) return false;        
         if (!populatePhonegapComponents()) return false;
@@ -103,16 +110,22 @@ public class AndroidPgProjectNewWizard extends NewProjectWizard implements INewW
     private boolean populatePhonegapComponents() {
         final PageInfo pageInfo = new PageInfo(mPhonegapPage.getLocationPathFieldValue(),
                 mPhonegapPage.getPhonegapPathFieldValue(), 
-                Platform.getLocation().toString() + "/"+ mNewAndroidProject.getName() + "/",
+                mNewAndroidProject.getLocation().toString() + "/",
                 mNewAndroidProject,
                 mPhonegapPage.getSenchaDirectory(),
                 mPhonegapPage.senchaChecked(), 
                 mPhonegapPage.useSenchaKitchenSink());
 
-        // Create a monitored operation to create the actual project
-        WorkspaceModifyOperation op = new WorkspaceModifyOperation() {
-            @Override
-            protected void execute(IProgressMonitor monitor) throws InvocationTargetException {
+        if (mPhonegapPage.populateInBackground()) {
+            // Let the wizard close, the job reports its own problems
+            new PopulateJob(pageInfo).schedule();
+            return true;
+        }
+
+        // Create a monitored operation to create the actual project. It takes
+        // its own scheduling rule, limited to the new project
+        IRunnableWithProgress op = new IRunnableWithProgress() {
+            public void run(IProgressMonitor monitor) throws InvocationTargetException {
                 PhonegapProjectPopulate.createProjectAsync(monitor, pageInfo);
             }
         };
@@ -128,7 +141,7 @@ public class AndroidPgProjectNewWizard extends NewProjectWizard implements INewW
      * 
      * @param op The asynchronous operation to run.
      */
-    private void runAsyncOperation(WorkspaceModifyOperation op) {
+    private void runAsyncOperation(IRunnableWithProgress op) {
         try {
             getContainer().run(true /* fork */, true /* cancelable */, op);
         } catch (InvocationTargetException e) {
@@ -165,35 +178,32 @@ public class AndroidPgProjectNewWizard extends NewProjectWizard implements INewW
         }
     }
     
-    // Thanks to
-    // http://code.hammerpig.com/convert-an-array-to-an-arraylist-in-java.html
-    // and
-    // http://code.hammerpig.com/find-the-difference-between-two-lists-in-java.html
-
-    private static ArrayList<String> CreateStringList(String... values) {
-        ArrayList<String> results = new ArrayList<String>();
-        Collections.addAll(results, values);
-        return results;
-    }
-    
-    private IProject findNewAndroidProject(String[] pre, String[] post) {
-        ArrayList<String> preList = CreateStringList(pre);
-        ArrayList<String> postList = CreateStringList(post);
-        Collection<String> result = new ArrayList<String>(postList);
-        result.removeAll(preList);
-
-        if (result.size() == 1) { // insure there is only one new directory -
-                                  // our new project
-            IWorkspace workspace = ResourcesPlugin.getWorkspace();
-            return workspace.getRoot().getProject((String) result.iterator().next());
-        } else {
-            return null;
+    /**
+     * Collects the projects added to the workspace while it is registered.
+     * Only the top level of each delta is looked at, so the cost doesn't
+     * depend on the size of the workspace.
+     */
+    private static class NewProjectListener implements IResourceChangeListener {
+        private final List<IProject> mAdded = new ArrayList<IProject>();
+
+        public void resourceChanged(IResourceChangeEvent event) {
+            IResourceDelta delta = event.getDelta();
+            if (delta == null)
+                return;
+            for (IResourceDelta child : delta.getAffectedChildren(IResourceDelta.ADDED)) {
+                if (child.getResource().getType() == IResource.PROJECT) {
+                    synchronized (mAdded) {
+                        mAdded.add((IProject) child.getResource());
+                    }
+                }
+            }
         }
-    }
 
-    private String[] getWorkspaceDirectoryList() {
-        String workspaceLocation = Platform.getLocation().toString();
-        File f = new File(workspaceLocation);
-        return f.list();
+        /** The new project, or null unless exactly one was added */
+        IProject getNewProject() {
+            synchronized (mAdded) {
+                return mAdded.size() == 1 ? mAdded.get(0) : null;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,548 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import com.mds.apg.Activator;
+
+/**
+ * A content-addressed store of the files of PhoneGap and Sencha
+ * installations, kept in the plug-in state location and shared by all
+ * projects. Each installation directory is ingested once; a tree index
+ * remembers the size, time and hash of every file, so later ingests only
+ * hash what changed. Projects are populated with copies from the store;
+ * checkout can hard link instead, where the file system and JRE allow it,
+ * but a link puts the read-only blob itself into the destination, so it is
+ * only for files that nothing ever writes to.
+ * 
+ * Blobs are read-only, and their modification time is set to STORED_TIME.
+ * A blob with any other time may have been written to, so it is re-hashed
+ * before it is trusted again. The least recently used blobs are evicted
+ * once the store grows past its size limit. When a blob was last used is
+ * kept in an index of the store rather than in the blob's time stamp.
+ * Nothing is evicted while a population holds the store (see acquire), so
+ * the blobs of a tree it has ingested are still there when it checks them
+ * out.
+ */
+public class BlobStore {
+
+    private static final String MAX_SIZE_PROPERTY = Activator.PLUGIN_ID + ".blobstore.maxsize";
+    private static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    /** The modification time of every trusted blob; a write changes it */
+    private static final long STORED_TIME = 1000L;
+
+    private static BlobStore sDefault;
+
+    private final File mBlobs;
+    private final File mTrees;
+    private final File mAccessFile;
+    private final long mMaxSize;
+    private final Map<String, Properties> mTreeCache = new HashMap<String, Properties>();
+    private long mSize = -1; // computed on first use
+    private Properties mAccess; // hash to time of last use, loaded on first use
+    private boolean mAccessChanged;
+    private int mUsers; // populations between acquire and release
+
+    BlobStore(File root, long maxSize) {
+        mBlobs = new File(root, "blobs");
+        mTrees = new File(root, "trees");
+        mAccessFile = new File(root, "access.properties");
+        mMaxSize = maxSize;
+    }
+
+    /** The store in the plug-in state location */
+    public static synchronized BlobStore getDefault() {
+        if (sDefault == null) {
+            long maxSize = DEFAULT_MAX_SIZE;
+            String property = System.getProperty(MAX_SIZE_PROPERTY);
+            if (property != null) {
+                try {
+                    maxSize = Long.parseLong(property.trim()) * 1024 * 1024;
+                } catch (NumberFormatException e) {
+                    ;
+                }
+            }
+            sDefault = new BlobStore(Activator.getDefault().getStateLocation().append("store")
+                    .toFile(), maxSize);
+        }
+        return sDefault;
+    }
+
+    // --- Ingest ----
+
+    /**
+     * Makes sure every file under dirName is in the store. The files that
+     * aren't yet are hashed and stored on the IoPool, FileCopy.getParallelism()
+     * at a time; failures are reported together in a CopyException.
+     * 
+     * @return the tree: relative path (using '/') to content hash
+     */
+    public Map<String, String> ingest(String dirName) throws IOException {
+        CopyPlan plan = CopyPlan.scan(dirName);
+        Properties index = loadTree(plan.getRoot());
+        List<CopyPlan.Entry> files = plan.getFiles();
+        final String[] hashes = new String[files.size()];
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+        for (int i = 0; i < hashes.length; i++) {
+            CopyPlan.Entry file = files.get(i);
+            String fingerprint = file.getSize() + "," + file.getLastModified() + ",";
+            String known = index.getProperty(file.getPath());
+            if (known != null && known.startsWith(fingerprint)) {
+                String hash = known.substring(fingerprint.length());
+                if (hasBlob(hash)) {
+                    hashes[i] = hash;
+                    continue;
+                }
+                // else evicted or damaged since
+            }
+            final int n = i;
+            final File from = new File(plan.getRoot(), file.getPath());
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException {
+                    hashes[n] = ingestFile(from);
+                    return null;
+                }
+            });
+        }
+        IoPool.runAll(tasks, FileCopy.getParallelism());
+
+        Properties updated = new Properties();
+        Map<String, String> tree = new TreeMap<String, String>();
+        for (int i = 0; i < hashes.length; i++) {
+            CopyPlan.Entry file = files.get(i);
+            updated.setProperty(file.getPath(), file.getSize() + "," + file.getLastModified()
+                    + "," + hashes[i]);
+            tree.put(file.getPath(), hashes[i]);
+        }
+        if (!tasks.isEmpty() || index.size() != hashes.length) {
+            saveTree(plan.getRoot(), updated);
+        }
+        return tree;
+    }
+
+    /**
+     * Adds one file to the store.
+     * 
+     * @return its content hash
+     */
+    public String ingestFile(File file) throws IOException {
+        String hash = ContentHash.of(file);
+        if (hasBlob(hash))
+            return hash;
+
+        File blob = blobFile(hash);
+        File dir = blob.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("BlobStore: " + "directory Creation Failed: " + dir);
+
+        // Copy under a temporary name so a blob is never seen half written
+        File temp = File.createTempFile(hash, ".tmp", dir);
+        try {
+            FileCopy.copyFile(file, temp);
+            if (!ContentHash.of(temp).equals(hash))
+                throw new IOException("BlobStore: " + "file changed while being stored: " + file);
+            seal(temp);
+            synchronized (this) {
+                // Another thread may have stored the same content meanwhile
+                if (!blob.isFile()) {
+                    if (!temp.renameTo(blob))
+                        throw new IOException("BlobStore: " + "can't store " + file);
+                    if (mSize >= 0)
+                        mSize += blob.length();
+                }
+            }
+        } finally {
+            temp.delete();
+        }
+        touch(hash);
+        return hash;
+    }
+
+    /** Whether the store holds a trustworthy blob with this hash */
+    public boolean contains(String hash) throws IOException {
+        return hasBlob(hash);
+    }
+
+    /**
+     * Whether the blob is present and can be trusted. A blob whose time is
+     * no longer STORED_TIME may have been written to, whatever its
+     * permissions say (they don't stop root), so it is checked and dropped
+     * if its content no longer matches its name.
+     */
+    private boolean hasBlob(String hash) throws IOException {
+        File blob = blobFile(hash);
+        if (!blob.isFile())
+            return false;
+        if (blob.lastModified() != STORED_TIME) {
+            if (!ContentHash.of(blob).equals(hash)) {
+                blob.delete();
+                return false;
+            }
+            seal(blob);
+        }
+        return true;
+    }
+
+    /** Marks a blob as checked: read-only, with the time of a trusted blob */
+    private static void seal(File blob) {
+        blob.setWritable(true); // some platforms won't set the time of a read-only file
+        blob.setLastModified(STORED_TIME);
+        blob.setReadOnly();
+    }
+
+    private File blobFile(String hash) {
+        return new File(new File(mBlobs, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    // --- Checkout ----
+
+    /**
+     * Populates toDirName with a tree returned by ingest. The directories
+     * are created first, then the files are checked out on the IoPool,
+     * FileCopy.getParallelism() at a time. Every file is attempted; failures
+     * are reported together in a CopyException.
+     * 
+     * @param force replace destination files that already exist
+     * @param link hard link the files instead of copying them when possible.
+     *            An edit through a link would change the blob, and so every
+     *            project's copy, so only use this for files the plug-in
+     *            owns and rewrites itself, never for sources a user may edit.
+     */
+    public void checkout(Map<String, String> tree, String toDirName, final boolean force,
+            final boolean link) throws IOException {
+        File toRoot = new File(toDirName);
+        Set<File> knownDirs = new HashSet<File>();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(tree.size());
+        for (final Map.Entry<String, String> file : tree.entrySet()) {
+            final File to = new File(toRoot, file.getKey());
+            File dir = to.getParentFile();
+            if (knownDirs.add(dir) && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("BlobStore: " + "directory Creation Failed: " + dir);
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException {
+                    checkoutFile(file.getValue(), to, force, link);
+                    return null;
+                }
+            });
+        }
+        IoPool.runAll(tasks, FileCopy.getParallelism());
+    }
+
+    /** Populates one file from the store. See checkout. */
+    public void checkoutFile(String hash, File to, boolean force, boolean link) throws IOException {
+        File blob = blobFile(hash);
+        if (!blob.isFile())
+            throw new IOException("BlobStore: " + "not in store: " + hash + " for " + to);
+        if (to.exists()) {
+            if (!force)
+                throw new IOException("BlobStore: "
+                        + "trying to overwrite an existing file: " + to);
+            if (FileCopy.isCompareBeforeWrite() && FileCopy.sameContent(blob, to)) {
+                FileCopy.getStatistics().recordSkip(to.length());
+                return;
+            }
+            // Replace rather than overwrite, in case the old file is a link
+            if (!to.delete())
+                throw new IOException("BlobStore: "
+                        + "destination file is unwriteable: " + to);
+        }
+        touch(hash);
+        if (!link || !HardLinks.create(to, blob)) {
+            FileCopy.copyFile(blob, to);
+        }
+    }
+
+    // --- Maintenance ----
+
+    /**
+     * Holds off eviction until the matching release, for a population that
+     * ingests trees and checks them out later.
+     */
+    public synchronized void acquire() {
+        mUsers++;
+    }
+
+    /**
+     * Ends a use begun with acquire. The last population to release the
+     * store evicts, if needed, for all of them.
+     * 
+     * @return the number of blobs evicted
+     */
+    public synchronized int release() {
+        mUsers--;
+        return evictIfNeeded();
+    }
+
+    /**
+     * Deletes the least recently used blobs until the store is within its
+     * size limit. Does nothing while a population holds the store.
+     * 
+     * @return the number of blobs evicted
+     */
+    public synchronized int evict() {
+        if (mUsers > 0) {
+            saveAccess();
+            return 0;
+        }
+        final Properties access = getAccess();
+        List<File> blobs = listBlobs();
+        long size = 0;
+        for (File blob : blobs) {
+            size += blob.length();
+        }
+        int evicted = 0;
+        if (size > mMaxSize) {
+            File[] byAge = blobs.toArray(new File[blobs.size()]);
+            Arrays.sort(byAge, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long diff = lastUsed(access, a) - lastUsed(access, b);
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            for (File blob : byAge) {
+                if (size <= mMaxSize)
+                    break;
+                long length = blob.length();
+                if (blob.delete()) {
+                    size -= length;
+                    evicted++;
+                    access.remove(hashOf(blob));
+                    mAccessChanged = true;
+                }
+            }
+        }
+        mSize = size;
+        saveAccess();
+        return evicted;
+    }
+
+    /**
+     * Evicts only when blobs added since the last check took the store past
+     * its limit. The times of use are saved either way.
+     */
+    public synchronized int evictIfNeeded() {
+        if (mSize >= 0 && mSize <= mMaxSize) {
+            saveAccess();
+            return 0;
+        }
+        return evict();
+    }
+
+    // --- Times of use ----
+
+    /** Records that the blob was used now */
+    private synchronized void touch(String hash) {
+        getAccess().setProperty(hash, Long.toString(System.currentTimeMillis()));
+        mAccessChanged = true;
+    }
+
+    private static long lastUsed(Properties access, File blob) {
+        String time = access.getProperty(hashOf(blob));
+        if (time != null) {
+            try {
+                return Long.parseLong(time);
+            } catch (NumberFormatException e) {
+                ;
+            }
+        }
+        return 0; // in use before the index was kept, or never
+    }
+
+    private static String hashOf(File blob) {
+        return blob.getParentFile().getName() + blob.getName();
+    }
+
+    private synchronized Properties getAccess() {
+        if (mAccess == null) {
+            mAccess = new Properties();
+            if (mAccessFile.isFile()) {
+                try {
+                    InputStream in = new FileInputStream(mAccessFile);
+                    try {
+                        mAccess.load(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    // Only the order of eviction is lost
+                    mAccess.clear();
+                }
+            }
+        }
+        return mAccess;
+    }
+
+    private synchronized void saveAccess() {
+        if (!mAccessChanged)
+            return;
+        try {
+            File dir = mAccessFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("BlobStore: " + "directory Creation Failed: " + dir);
+            OutputStream out = new FileOutputStream(mAccessFile);
+            try {
+                getAccess().store(out, null);
+            } finally {
+                out.close();
+            }
+            mAccessChanged = false;
+        } catch (IOException e) {
+            // Only the order of eviction is lost
+            Activator.logWarning("Can't save when the PhoneGap file cache was used", e);
+        }
+    }
+
+    /**
+     * Re-hashes every blob and deletes the ones whose content no longer
+     * matches their name. Trees that referenced them are re-ingested on
+     * their next use.
+     * 
+     * @return the paths of the blobs that were deleted
+     */
+    public synchronized List<String> verify() throws IOException {
+        List<String> corrupt = new ArrayList<String>();
+        for (File blob : listBlobs()) {
+            String hash = hashOf(blob);
+            if (!ContentHash.of(blob).equals(hash)) {
+                corrupt.add(blob.getPath());
+                blob.delete();
+            } else if (blob.lastModified() != STORED_TIME || blob.canWrite()) {
+                seal(blob);
+            }
+        }
+        mSize = -1;
+        return corrupt;
+    }
+
+    private List<File> listBlobs() {
+        List<File> blobs = new ArrayList<File>();
+        File[] dirs = mBlobs.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().endsWith(".tmp")) {
+                            file.delete(); // left by an interrupted ingest
+                        } else {
+                            blobs.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        return blobs;
+    }
+
+    // --- Tree indexes ----
+
+    private synchronized Properties loadTree(File root) throws IOException {
+        String key = treeKey(root);
+        Properties tree = mTreeCache.get(key);
+        if (tree == null) {
+            tree = new Properties();
+            File file = new File(mTrees, key);
+            if (file.isFile()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    tree.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            mTreeCache.put(key, tree);
+        }
+        return tree;
+    }
+
+    private synchronized void saveTree(File root, Properties tree) throws IOException {
+        String key = treeKey(root);
+        mTreeCache.put(key, tree);
+        if (!mTrees.isDirectory() && !mTrees.mkdirs())
+            throw new IOException("BlobStore: " + "directory Creation Failed: " + mTrees);
+        OutputStream out = new FileOutputStream(new File(mTrees, key));
+        try {
+            tree.store(out, root.getPath());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String treeKey(File root) {
+        return ContentHash.of(root.getAbsolutePath()) + ".properties";
+    }
+
+    /**
+     * Hard links through java.nio.file.Files when the plug-in runs on a Java
+     * 7 or later JRE. The plug-in itself targets Java 6, hence reflection.
+     */
+    static class HardLinks {
+        private static final Method sToPath;
+        private static final Method sCreateLink;
+
+        static {
+            Method toPath = null;
+            Method createLink = null;
+            try {
+                Class<?> path = Class.forName("java.nio.file.Path");
+                toPath = File.class.getMethod("toPath");
+                createLink = Class.forName("java.nio.file.Files").getMethod("createLink", path,
+                        path);
+            } catch (Exception e) {
+                toPath = null; // Java 6: always copy
+                createLink = null;
+            }
+            sToPath = toPath;
+            sCreateLink = createLink;
+        }
+
+        /** @return false if no link could be made (and nothing was created) */
+        static boolean create(File link, File existing) {
+            if (sCreateLink == null)
+                return false;
+            try {
+                sCreateLink.invoke(null, sToPath.invoke(link), sToPath.invoke(existing));
+                return true;
+            } catch (InvocationTargetException e) {
+                return false; // e.g. across file systems, or not supported
+            } catch (IllegalAccessException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when some of the files of a parallel copy failed. The other files
+ * were still copied.
+ */
+public class CopyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<IOException> mFailures;
+
+    CopyException(List<IOException> failures, int attempted) {
+        super("FileCopy: " + failures.size() + " of " + attempted
+                + " files failed to copy. First error: " + failures.get(0).getMessage());
+        initCause(failures.get(0));
+        mFailures = Collections.unmodifiableList(failures);
+    }
+
+    /** The individual failures, in the order the files were found */
+    public List<IOException> getFailures() {
+        return mFailures;
+    }
+}
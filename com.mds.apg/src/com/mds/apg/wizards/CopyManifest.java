@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Fingerprints (size, modification time and optionally a content hash) of
+ * the files an earlier copy wrote, saved next to the project so that the
+ * next copy from the same source only has to write what changed.
+ */
+public class CopyManifest {
+
+    private final File mFile;
+    private final Properties mEntries = new Properties();
+
+    private int mCopied;
+    private int mSkipped;
+    private int mDeleted;
+
+    private CopyManifest(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the manifest saved in file. A missing file gives an empty
+     * manifest, so the first sync copies everything.
+     */
+    public static CopyManifest load(File file) throws IOException {
+        CopyManifest manifest = new CopyManifest(file);
+        if (file.isFile()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                manifest.mEntries.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return manifest;
+    }
+
+    public void save() throws IOException {
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("CopyManifest: " + "directory Creation Failed: " + dir);
+        OutputStream out = new FileOutputStream(mFile);
+        try {
+            mEntries.store(out, "Files copied by the PhoneGap wizard");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Brings toDirName up to date with the planned source tree: new and
+     * changed files are copied, files the manifest lists but the source no
+     * longer has are deleted, and everything else is left alone. A file is
+     * unchanged when the source size and modification time match the
+     * manifest and the destination still has the recorded size. With
+     * useHash, a source whose time changed but whose content hash didn't is
+     * also left alone.
+     */
+    public void sync(CopyPlan plan, String toDirName, boolean useHash, int parallelism)
+            throws IOException {
+        mCopied = mSkipped = mDeleted = 0;
+        File toRoot = new File(toDirName);
+        List<CopyPlan.Entry> changed = new ArrayList<CopyPlan.Entry>();
+        Properties entries = new Properties();
+
+        for (CopyPlan.Entry file : plan.getFiles()) {
+            String path = file.getPath();
+            String[] old = split(mEntries.getProperty(path));
+            String hash = null;
+            boolean same = false;
+
+            if (old != null && Long.parseLong(old[0]) == file.getSize()
+                    && new File(toRoot, path).length() == file.getSize()) {
+                if (Long.parseLong(old[1]) == file.getLastModified()) {
+                    same = true;
+                    hash = old.length > 2 ? old[2] : null;
+                } else if (useHash && old.length > 2) {
+                    hash = ContentHash.of(new File(plan.getRoot(), path));
+                    same = hash.equals(old[2]);
+                }
+            }
+            if (same) {
+                mSkipped++;
+            } else {
+                changed.add(file);
+            }
+            if (useHash && hash == null) {
+                hash = ContentHash.of(new File(plan.getRoot(), path));
+            }
+            entries.setProperty(path, file.getSize() + "," + file.getLastModified()
+                    + (hash != null ? "," + hash : ""));
+        }
+
+        plan.subset(changed).execute(toDirName, true /* force */, parallelism);
+        mCopied = changed.size();
+
+        deleteRemoved(plan, toRoot, entries);
+        mEntries.clear();
+        mEntries.putAll(entries);
+    }
+
+    private void deleteRemoved(CopyPlan plan, File toRoot, Properties current) {
+        Set<String> keptDirs = new HashSet<String>();
+        for (CopyPlan.Entry dir : plan.getDirectories()) {
+            keptDirs.add(dir.getPath());
+        }
+        for (Object key : mEntries.keySet()) {
+            String path = (String) key;
+            if (current.containsKey(path))
+                continue;
+            File removed = new File(toRoot, path);
+            if (removed.delete())
+                mDeleted++;
+
+            // Remove directories the source dropped, once they are empty
+            int slash = path.lastIndexOf('/');
+            while (slash > 0) {
+                path = path.substring(0, slash);
+                if (keptDirs.contains(path) || !new File(toRoot, path).delete())
+                    break;
+                slash = path.lastIndexOf('/');
+            }
+        }
+    }
+
+    private static String[] split(String value) {
+        return value == null ? null : value.split(",");
+    }
+
+    /** Files written by the last sync */
+    public int getCopiedCount() {
+        return mCopied;
+    }
+
+    /** Files the last sync found unchanged */
+    public int getSkippedCount() {
+        return mSkipped;
+    }
+
+    /** Files the last sync deleted because the source no longer has them */
+    public int getDeletedCount() {
+        return mDeleted;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * An in-memory picture of a source directory tree, made by walking it once.
+ * The directories and files, with their sizes and modification times, are
+ * known before any copying starts, so callers can size progress up front and
+ * the copy itself doesn't have to stat the source again.
+ * 
+ * Paths in the plan are relative to the scanned root and use '/'. The root
+ * itself is the directory "".
+ */
+public class CopyPlan {
+
+    /** A directory or file found by the scan */
+    public static final class Entry {
+        private final String mPath;
+        private final long mSize;
+        private final long mLastModified;
+
+        Entry(String path, long size, long lastModified) {
+            mPath = path;
+            mSize = size;
+            mLastModified = lastModified;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getLastModified() {
+            return mLastModified;
+        }
+    }
+
+    /** One file to copy; checked when the destination name was already taken */
+    private static final class Copy {
+        final File mFrom;
+        final File mTo;
+        final boolean mChecked;
+
+        Copy(File from, File to, boolean checked) {
+            mFrom = from;
+            mTo = to;
+            mChecked = checked;
+        }
+
+        void run(boolean force) throws IOException {
+            if (mChecked) {
+                FileCopy.copyChecked(mFrom.getPath(), mTo.getPath(), force);
+            } else {
+                FileCopy.copyFile(mFrom, mTo);
+            }
+        }
+    }
+
+    private final File mRoot;
+    private final List<Entry> mDirectories = new ArrayList<Entry>();
+    private final List<Entry> mFiles = new ArrayList<Entry>();
+    private long mTotalBytes;
+
+    private CopyPlan(File root) {
+        mRoot = root;
+    }
+
+    /**
+     * Walks fromDirName once and records what is below it.
+     * 
+     * @throws IOException if fromDirName isn't a directory or can't be listed
+     */
+    public static CopyPlan scan(String fromDirName) throws IOException {
+        return scan(fromDirName, true);
+    }
+
+    /**
+     * As scan(fromDirName), but directories that are symbolic links are left
+     * out unless followLinks is set, so a link cycle can't make the walk
+     * recurse forever.
+     */
+    public static CopyPlan scan(String fromDirName, boolean followLinks) throws IOException {
+        File root = new File(fromDirName);
+        if (!root.isDirectory())
+            throw new IOException("CopyPlan: " + "no such source directory: " + fromDirName);
+        CopyPlan plan = new CopyPlan(root);
+        plan.scan(root, "", followLinks);
+        return plan;
+    }
+
+    private void scan(File dir, String path, boolean followLinks) throws IOException {
+        mDirectories.add(new Entry(path, 0, dir.lastModified()));
+        File[] children = dir.listFiles();
+        if (children == null)
+            throw new IOException("CopyPlan: " + "can't list directory: " + dir);
+        String prefix = path.length() == 0 ? "" : path + "/";
+        for (File child : children) {
+            if (child.isDirectory()) {
+                if (followLinks || !isLink(child))
+                    scan(child, prefix + child.getName(), followLinks);
+            } else {
+                long size = child.length();
+                mFiles.add(new Entry(prefix + child.getName(), size, child.lastModified()));
+                mTotalBytes += size;
+            }
+        }
+    }
+
+    /** Whether file is a symbolic link; Java 6 can only tell by its canonical path */
+    private static boolean isLink(File file) throws IOException {
+        File inParent = new File(file.getParentFile().getCanonicalFile(), file.getName());
+        return !inParent.getCanonicalFile().equals(inParent);
+    }
+
+    /**
+     * A plan with the same root and directories as this one but only the
+     * given files, which must come from this plan.
+     */
+    public CopyPlan subset(List<Entry> files) {
+        CopyPlan plan = new CopyPlan(mRoot);
+        plan.mDirectories.addAll(mDirectories);
+        for (Entry file : files) {
+            plan.mFiles.add(file);
+            plan.mTotalBytes += file.mSize;
+        }
+        return plan;
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /** Directories in walk order, parents before their children */
+    public List<Entry> getDirectories() {
+        return Collections.unmodifiableList(mDirectories);
+    }
+
+    public List<Entry> getFiles() {
+        return Collections.unmodifiableList(mFiles);
+    }
+
+    public int getFileCount() {
+        return mFiles.size();
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Copies the planned tree to toDirName, one file at a time. Destination
+     * files that already exist get the same checks as FileCopy.copy; the rest
+     * are written without further stat calls.
+     */
+    public void execute(String toDirName, boolean force) throws IOException {
+        for (Copy copy : prepare(toDirName)) {
+            copy.run(force);
+        }
+    }
+
+    /**
+     * Copies the planned tree to toDirName with up to parallelism files in
+     * flight, on the shared IoPool. Every file is attempted; failures are
+     * reported together in a CopyException.
+     */
+    public void execute(String toDirName, final boolean force, int parallelism) throws IOException {
+        List<Copy> copies = prepare(toDirName);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(copies.size());
+        for (final Copy copy : copies) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException {
+                    copy.run(force);
+                    return null;
+                }
+            });
+        }
+        IoPool.runAll(tasks, parallelism);
+    }
+
+    /**
+     * Creates the destination directories and returns the copies to make.
+     * Only directories that already existed are listed, to find the names
+     * that are taken.
+     */
+    private List<Copy> prepare(String toDirName) throws IOException {
+        File toRoot = new File(toDirName);
+        Set<String> existing = new HashSet<String>();
+
+        for (Entry dir : mDirectories) {
+            File toDir = dir.mPath.length() == 0 ? toRoot : new File(toRoot, dir.mPath);
+            if (toDir.mkdir())
+                continue; // new and therefore empty
+            if (!toDir.isDirectory()) {
+                throw new IOException("CopyPlan: "
+                        + (toDir.exists() ? "Cannot copy directory to non-directory: "
+                                : "directory Creation Failed: ") + toDir);
+            }
+            String[] names = toDir.list();
+            if (names != null) {
+                String prefix = dir.mPath.length() == 0 ? "" : dir.mPath + "/";
+                for (String name : names) {
+                    existing.add(prefix + name);
+                }
+            }
+        }
+
+        List<Copy> copies = new ArrayList<Copy>(mFiles.size());
+        for (Entry file : mFiles) {
+            copies.add(new Copy(new File(mRoot, file.mPath), new File(toRoot, file.mPath), existing
+                    .contains(file.mPath)));
+        }
+        return copies;
+    }
+
+    @Override
+    public String toString() {
+        return "CopyPlan " + mRoot + ": " + mDirectories.size() + " directories, " + mFiles.size()
+                + " files, " + mTotalBytes + " bytes";
+    }
+}
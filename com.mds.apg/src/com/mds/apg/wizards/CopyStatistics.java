@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for the writes done by FileCopy or StringIO, so that the
+ * throughput of a project population can be reported. Safe to update from
+ * several threads.
+ */
+public class CopyStatistics {
+
+    private final AtomicLong mFiles = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mNanos = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+    private final AtomicLong mSkippedBytes = new AtomicLong();
+
+    void record(long bytes, long nanos) {
+        mFiles.incrementAndGet();
+        mBytes.addAndGet(bytes);
+        mNanos.addAndGet(nanos);
+    }
+
+    /** A write left out because the target already had the same content */
+    void recordSkip(long bytes) {
+        mSkipped.incrementAndGet();
+        mSkippedBytes.addAndGet(bytes);
+    }
+
+    public void reset() {
+        mFiles.set(0);
+        mBytes.set(0);
+        mNanos.set(0);
+        mSkipped.set(0);
+        mSkippedBytes.set(0);
+    }
+
+    public long getFileCount() {
+        return mFiles.get();
+    }
+
+    public long getByteCount() {
+        return mBytes.get();
+    }
+
+    /** Time spent inside the copy loops, summed over all copied files */
+    public long getElapsedNanos() {
+        return mNanos.get();
+    }
+
+    /** Writes skipped because the content was already there */
+    public long getSkippedCount() {
+        return mSkipped.get();
+    }
+
+    public long getSkippedBytes() {
+        return mSkippedBytes.get();
+    }
+
+    public long getBytesPerSecond() {
+        long nanos = mNanos.get();
+        return nanos == 0 ? 0 : (long) (mBytes.get() * 1000000000.0 / nanos);
+    }
+
+    @Override
+    public String toString() {
+        return getFileCount() + " files, " + getByteCount() + " bytes in "
+                + (getElapsedNanos() / 1000000) + " ms (" + (getBytesPerSecond() / 1024)
+                + " KB/s), "
+                + getSkippedCount() + " unchanged files not rewritten";
+    }
+}
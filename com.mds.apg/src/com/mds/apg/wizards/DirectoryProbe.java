@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What the wizard knows about a directory: whether it is one and the names
+ * in it. Directories are looked at on a worker thread, so a slow or network
+ * mount never blocks the dialog, and the result is cached by path and
+ * modification time.
+ */
+final class DirectoryProbe {
+
+    /** What an empty path stands for, without asking the file system */
+    private static final DirectoryProbe NONE = new DirectoryProbe(0, false,
+            Collections.<String> emptySet());
+
+    private static final ConcurrentHashMap<String, DirectoryProbe> sCache =
+            new ConcurrentHashMap<String, DirectoryProbe>();
+    private static final Set<String> sPending = Collections.synchronizedSet(new HashSet<String>());
+    private static final ExecutorService sExecutor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PhoneGap directory probe");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final long mLastModified;
+    private final boolean mDirectory;
+    private final Set<String> mNames;
+
+    private DirectoryProbe(long lastModified, boolean directory, Set<String> names) {
+        mLastModified = lastModified;
+        mDirectory = directory;
+        mNames = names;
+    }
+
+    /**
+     * Returns what is known about path, or null if it hasn't been looked at
+     * yet. Either way the directory is looked at again in the background,
+     * and onChange is run on the worker thread if that finds something
+     * different from what was returned.
+     */
+    static DirectoryProbe get(final String path, final Runnable onChange) {
+        if (path.length() == 0)
+            return NONE;
+        DirectoryProbe cached = sCache.get(path);
+        if (sPending.add(path)) {
+            sExecutor.execute(new Runnable() {
+                public void run() {
+                    DirectoryProbe old = sCache.get(path);
+                    try {
+                        if (probe(path, old) != old)
+                            onChange.run();
+                    } finally {
+                        sPending.remove(path);
+                    }
+                }
+            });
+        }
+        return cached;
+    }
+
+    /** Looks at the directory, listing it only if it changed since old */
+    private static DirectoryProbe probe(String path, DirectoryProbe old) {
+        File dir = new File(path);
+        long lastModified = dir.lastModified();
+        boolean directory = dir.isDirectory();
+        if (old != null && old.mLastModified == lastModified && old.mDirectory == directory)
+            return old;
+
+        Set<String> names = Collections.emptySet();
+        if (directory) {
+            String[] list = dir.list();
+            if (list != null)
+                names = new HashSet<String>(Arrays.asList(list));
+        }
+        DirectoryProbe probe = new DirectoryProbe(lastModified, directory, names);
+        sCache.put(path, probe);
+        return probe;
+    }
+
+    boolean isDirectory() {
+        return mDirectory;
+    }
+
+    boolean isEmpty() {
+        return mNames.isEmpty();
+    }
+
+    boolean contains(String name) {
+        return mNames.contains(name);
+    }
+}
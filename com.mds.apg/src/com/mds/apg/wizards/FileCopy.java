@@ -2,13 +2,29 @@
 
 package com.mds.apg.wizards;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class FileCopy {
 
+    // Windows can fail transferTo requests much larger than this
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final CopyStatistics sStatistics = new CopyStatistics();
+
+    private static volatile int sParallelism = Runtime.getRuntime().availableProcessors();
+
+    private static volatile boolean sCompareBeforeWrite = true;
+
     public static void recursiveCopy(String fromFileName, String toFileName) throws IOException {
         copy (fromFileName, toFileName, true, false);
     }
@@ -25,35 +41,54 @@ public class FileCopy {
         copy (fromFileName, toFileName, false, false);
     }
 
+    /**
+     * Copies only what changed in fromDirName since the copy recorded in
+     * manifestFile, deletes what the source dropped, and records the new
+     * state. See CopyManifest.sync.
+     *
+     * @return the manifest, for its copied, skipped and deleted counts
+     */
+    public static CopyManifest incrementalCopy(String fromDirName, String toDirName,
+            File manifestFile, boolean useHash) throws IOException {
+        CopyManifest manifest = CopyManifest.load(manifestFile);
+        manifest.sync(CopyPlan.scan(fromDirName), toDirName, useHash, sParallelism);
+        manifest.save();
+        return manifest;
+    }
+
+    /** Sets the number of files copied or rewritten at once, and the IoPool size */
+    public static void setParallelism(int parallelism) {
+        sParallelism = Math.max(1, parallelism);
+    }
+
+    public static int getParallelism() {
+        return sParallelism;
+    }
+
     private static void copy(String fromFileName, String toFileName, boolean isRecursive, boolean force)
     throws IOException {
         File fromFile = new File(fromFileName);
-        File toFile = new File(toFileName);
 
         if (!fromFile.exists())
             throw new IOException("FileCopy: " + "no such source file: "
                     + fromFileName);
 
         if (isRecursive && fromFile.isDirectory()) {
-            if (toFile.exists()) {
-                if (!toFile.isDirectory()) {
-                    throw new IOException("FileCopy: " + "Cannot copy directory to non-directory: "
-                            + toFileName);
-                }
-            } else { // create the directory
-                toFile = new File(toFileName);
-                if (!toFile.mkdir()) {
-                    throw new IOException("FileCopy: " + "directory Creation Failed: "
-                            + toFileName);
-                }
-            }                
-            String fList[] = fromFile.list();
-            for (String s : fList) {
-                copy(fromFileName + "/" + s, toFileName + "/" + s, true, force);
-            }
+            CopyPlan.scan(fromFileName).execute(toFileName, force);
             return;
         }
+        copyChecked(fromFileName, toFileName, force);
+    }
+
+    /** Copies a single file after checking the source and destination */
+    static void copyChecked(String fromFileName, String toFileName, boolean force)
+    throws IOException {
+        File fromFile = new File(fromFileName);
+        File toFile = new File(toFileName);
 
+        if (!fromFile.exists())
+            throw new IOException("FileCopy: " + "no such source file: "
+                    + fromFileName);
         if (!fromFile.isFile())
             throw new IOException("FileCopy: " + "can't copy directory: "
                     + fromFileName);
@@ -72,6 +107,10 @@ public class FileCopy {
                 throw new IOException("FileCopy: "
                         + "trying to overwrite an existing file" + toFileName);
             }
+            if (sCompareBeforeWrite && sameContent(fromFile, toFile)) {
+                sStatistics.recordSkip(toFile.length());
+                return;
+            }
         } else {
             String parent = toFile.getParent();
             if (parent == null)
@@ -88,33 +127,174 @@ public class FileCopy {
                         + "destination directory is unwriteable: " + parent);
         }
 
+        copyFile(fromFile, toFile);
+    }
+
+    /**
+     * Copies the contents of one regular file to another, truncating the
+     * destination. The kernel does the copy through FileChannel.transferTo
+     * where the platform supports it; otherwise, or if the transfer stops
+     * short, the rest is streamed through a direct buffer.
+     */
+    static void copyFile(File fromFile, File toFile) throws IOException {
+        long start = System.nanoTime();
         FileInputStream from = null;
         FileOutputStream to = null;
         try {
             from = new FileInputStream(fromFile);
             to = new FileOutputStream(toFile);
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+            FileChannel in = from.getChannel();
+            FileChannel out = to.getChannel();
+            long size = in.size();
+            long position = transfer(in, out, size);
+            if (position < size) {
+                position += stream(in, out, position);
+            }
+            sStatistics.record(position, System.nanoTime() - start);
+        } finally {
+            close(from);
+            close(to);
+        }
+    }
+
+    private static long transfer(FileChannel in, FileChannel out, long size) {
+        long position = 0;
+        try {
+            while (position < size) {
+                long count = in.transferTo(position, Math.min(size - position, TRANSFER_CHUNK),
+                        out);
+                if (count <= 0)
+                    break;
+                position += count;
+            }
+        } catch (IOException e) {
+            // Some file systems and JVMs refuse transferTo; stream() picks up
+            // from whatever did get written
+        }
+        return position;
+    }
+
+    private static long stream(FileChannel in, FileChannel out, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        long total = 0;
+        in.position(position);
+        out.position(position);
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                total += out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return total;
+    }
 
-            while ((bytesRead = from.read(buffer)) != -1)
-                to.write(buffer, 0, bytesRead); // write
+    /**
+     * When set (the default), overwriting a file with identical content is
+     * skipped, leaving its time stamp alone so that Eclipse sees no change
+     * and doesn't rebuild. StringIO.write follows the same setting.
+     */
+    public static void setCompareBeforeWrite(boolean compare) {
+        sCompareBeforeWrite = compare;
+    }
+
+    public static boolean isCompareBeforeWrite() {
+        return sCompareBeforeWrite;
+    }
+
+    /**
+     * Whether two files hold the same bytes. Sizes are compared first, so
+     * different files are usually told apart without reading them.
+     */
+    static boolean sameContent(File a, File b) throws IOException {
+        long size = a.length();
+        if (size != b.length())
+            return false;
+        FileInputStream inA = null;
+        FileInputStream inB = null;
+        try {
+            inA = new FileInputStream(a);
+            inB = new FileInputStream(b);
+            return sameContent(inA.getChannel(), inB.getChannel(), size);
         } finally {
-            if (from != null)
-                try {
-                    from.close();
-                } catch (IOException e) {
-                    ;
-                }
-                if (to != null)
-                    try {
-                        to.close();
-                    } catch (IOException e) {
-                        ;
-                    }
+            close(inA);
+            close(inB);
+        }
+    }
+
+    /** Whether the file holds exactly the remaining bytes of content */
+    static boolean sameContent(File file, ByteBuffer content) throws IOException {
+        if (file.length() != content.remaining())
+            return false;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+            ByteBuffer expected = content.duplicate();
+            FileChannel channel = in.getChannel();
+            while (expected.hasRemaining()) {
+                buffer.clear();
+                buffer.limit(Math.min(buffer.capacity(), expected.remaining()));
+                if (channel.read(buffer) <= 0)
+                    return false;
+                buffer.flip();
+                ByteBuffer slice = expected.duplicate();
+                slice.limit(slice.position() + buffer.remaining());
+                if (!buffer.equals(slice))
+                    return false;
+                expected.position(slice.limit());
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean sameContent(FileChannel a, FileChannel b, long size) throws IOException {
+        ByteBuffer bufferA = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        ByteBuffer bufferB = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+        long remaining = size;
+        while (remaining > 0) {
+            bufferA.clear();
+            bufferB.clear();
+            int want = (int) Math.min(STREAM_BUFFER_SIZE, remaining);
+            bufferA.limit(want);
+            bufferB.limit(want);
+            while (bufferA.hasRemaining() && a.read(bufferA) > 0)
+                ;
+            while (bufferB.hasRemaining() && b.read(bufferB) > 0)
+                ;
+            if (bufferA.hasRemaining() || bufferB.hasRemaining())
+                return false; // changed size while reading
+            bufferA.flip();
+            bufferB.flip();
+            if (!bufferA.equals(bufferB))
+                return false;
+            remaining -= want;
+        }
+        return true;
+    }
+
+    /** Throughput of all copies done so far */
+    public static CopyStatistics getStatistics() {
+        return sStatistics;
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                ;
+            }
         }
     }
-    
-    
+
+    /**
+     * Builds phonegap.js: phonegap.js.base followed by the other files of
+     * fromDirName in name order, so the same inputs always give the same
+     * output. The inputs are mapped and written with a single gathering
+     * write.
+     */
     public static void createPhonegapJs(String fromDirName, String toFileName)
     throws IOException {
         File fromFile = new File(fromDirName);
@@ -124,51 +304,50 @@ public class FileCopy {
             throw new IOException("createPhongapJs: " + "no such source file: "
                     + fromDirName);
         }
-        FileOutputStream to = new FileOutputStream(toFile);
+        List<File> inputs = getPhonegapJsInputs(fromFile);
+        FileInputStream[] from = new FileInputStream[inputs.size()];
+        FileOutputStream to = null;
         try {
+            ByteBuffer[] buffers = new ByteBuffer[inputs.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                from[i] = new FileInputStream(inputs.get(i));
+                FileChannel in = from[i].getChannel();
+                buffers[i] = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            }
             to = new FileOutputStream(toFile);
-            to = appendStream(new File(fromDirName + "/" + "phonegap.js.base"), to);
-
-            String fList[] = fromFile.list();
-            for (String s : fList) {
-                if (!s.equals("phonegap.js.base")) {
-                    to = appendStream(new File(fromDirName + "/" + s), to);
-                }
+            FileChannel out = to.getChannel();
+            int first = 0;
+            while (first < buffers.length) {
+                out.write(buffers, first, buffers.length - first);
+                while (first < buffers.length && !buffers[first].hasRemaining())
+                    first++;
             }
         } finally {
-            if (to != null) {
-                try {
-                    to.close();
-                } catch (IOException e) {
-                    ;
-                }
+            for (FileInputStream in : from) {
+                close(in);
             }
+            close(to);
         }
     }
-    
-    private static FileOutputStream appendStream(File fromFile, FileOutputStream to) throws IOException {
-        
-        FileInputStream from = null;
-        try {
-            from = new FileInputStream(fromFile);
-            byte[] buffer = new byte[4096];
-            int bytesRead;
 
-            while ((bytesRead = from.read(buffer)) != -1)
-                to.write(buffer, 0, bytesRead); // write
-        } finally {
-            if (from != null) {
-                try {
-                    from.close();
-                } catch (IOException e) {
-                    ;
-                }
+    /**
+     * The files createPhonegapJs concatenates, in order: phonegap.js.base,
+     * then the other files sorted by name.
+     */
+    static List<File> getPhonegapJsInputs(File fromDir) throws IOException {
+        File base = new File(fromDir, "phonegap.js.base");
+        if (!base.isFile())
+            throw new IOException("createPhongapJs: " + "no such source file: " + base);
+        String fList[] = fromDir.list();
+        Arrays.sort(fList);
+        List<File> inputs = new ArrayList<File>(fList.length);
+        inputs.add(base);
+        for (String s : fList) {
+            File file = new File(fromDir, s);
+            if (!s.equals("phonegap.js.base") && file.isFile()) {
+                inputs.add(file);
             }
         }
-        return to;
+        return inputs;
     }
 }
-
-
-
-
@@ -3,14 +3,47 @@
 package com.mds.apg.wizards;
 
 import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 public class FileStringReplace {
 
+    private static final int MAX_PATTERNS = 64;
+
+    // The most recently used patterns by regex, so repeated replacements
+    // don't recompile. Only the regex is the key: replacements vary with the
+    // project, and the cache mustn't grow with them.
+    private static final Map<String, Pattern> sPatterns = new LinkedHashMap<String, Pattern>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > MAX_PATTERNS;
+        }
+    };
+
+    /**
+     * Replaces every match of the regex fromString in the file with
+     * toString, with the semantics of String.replaceAll.
+     */
     public static void replace(String fileString, String fromString, String toString) throws IOException {
 
-        String oldtext = StringIO.read(fileString);
+        Pattern pattern;
+        synchronized (sPatterns) {
+            pattern = sPatterns.get(fromString);
+            if (pattern == null) {
+                pattern = Pattern.compile(fromString);
+                sPatterns.put(fromString, pattern);
+            }
+        }
+        TextRewriter rewriter = new TextRewriter();
+        rewriter.addRegex(pattern, toString);
         // replace a word in a file
-        String newtext = oldtext.replaceAll(fromString, toString);
-        StringIO.write(fileString, newtext);
+        rewriter.rewriteFile(fileString);
+    }
+
+    /** Applies all the rules of rewriter to the file in one pass */
+    public static int[] replace(String fileString, TextRewriter rewriter) throws IOException {
+        return rewriter.rewriteFile(fileString);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.compiler.batch.BatchCompiler;
+
+import com.mds.apg.Activator;
+
+/**
+ * phonegap.jar compiled once per PhoneGap framework and Android target and
+ * shared by every project, so projects no longer carry and rebuild the
+ * framework sources. The jar is named after a hash of the source content
+ * hashes and the android.jar it was compiled against. A damaged jar is
+ * removed by verify and built again, under the same name, by the next
+ * population that needs it.
+ */
+public class FrameworkJarCache {
+
+    private static final String JAR_DIR = "jars";
+
+    /**
+     * Returns the phonegap.jar for the framework sources under
+     * phonegapDir, compiling it against androidJar if it hasn't been built
+     * yet. Only touches files, so it can run beside workspace changes.
+     *
+     * @throws IOException if the sources don't compile; the caller can
+     *             still fall back to copying the sources
+     */
+    static synchronized File get(String phonegapDir, File androidJar) throws IOException {
+        String srcDir = phonegapDir + "/" + "framework" + "/" + "src";
+        InstallationRegistry.Installation phonegap = InstallationRegistry.getDefault().getChecked(
+                phonegapDir, "framework/src");
+        String codecJar = phonegapDir + "/" + "framework" + "/" + "libs" + "/"
+                + "commons-codec-1.3.jar";
+
+        StringBuilder key = new StringBuilder();
+        key.append(androidJar.getPath()).append(',').append(androidJar.length()).append(',')
+                .append(androidJar.lastModified()).append('\n');
+        for (Map.Entry<String, String> source : phonegap.getTree("framework/src").entrySet()) {
+            key.append(source.getKey()).append('=').append(source.getValue()).append('\n');
+        }
+        File jarDir = Activator.getDefault().getStateLocation().append(JAR_DIR).toFile();
+        File jar = new File(jarDir, ContentHash.of(key.toString()) + ".jar");
+        if (jar.isFile())
+            return jar;
+
+        if (!jarDir.isDirectory() && !jarDir.mkdirs())
+            throw new IOException("FrameworkJarCache: " + "directory Creation Failed: " + jarDir);
+        File classes = File.createTempFile("phonegap", ".classes", jarDir);
+        try {
+            if (!classes.delete() || !classes.mkdir())
+                throw new IOException("FrameworkJarCache: " + "directory Creation Failed: "
+                        + classes);
+            compile(srcDir, classes, androidJar, codecJar);
+
+            File temp = new File(jarDir, jar.getName() + ".tmp");
+            writeJar(classes, temp);
+            if (!temp.renameTo(jar)) {
+                temp.delete();
+                if (!jar.isFile()) // else another instance was faster
+                    throw new IOException("FrameworkJarCache: " + "cannot create " + jar);
+            }
+        } finally {
+            delete(classes);
+        }
+        return jar;
+    }
+
+    /**
+     * The build of a jar returned by get: the hash of the sources and the
+     * android.jar it was compiled from, which it is named after.
+     */
+    static String getBuild(File jar) {
+        String name = jar.getName();
+        return name.substring(0, name.length() - ".jar".length());
+    }
+
+    /**
+     * The PhoneGap version of an installation, from its VERSION file. An
+     * installation without one is known by the hash its jar is named after.
+     */
+    static String getVersion(String phonegapDir, File jar) {
+        String version = InstallationRegistry.getDefault().getChecked(phonegapDir).getVersion();
+        return version != null ? version : jar.getName().substring(0, 12);
+    }
+
+    /**
+     * The android.jar the ADT container resolves to. Resolving the container
+     * may initialize it, so call this where the project's rule is held.
+     */
+    static File findAndroidJar(IJavaProject javaProject) throws IOException {
+        try {
+            for (IClasspathEntry entry : javaProject.getResolvedClasspath(true)) {
+                if (entry.getEntryKind() == IClasspathEntry.CPE_LIBRARY
+                        && "android.jar".equals(entry.getPath().lastSegment())) {
+                    return entry.getPath().toFile();
+                }
+            }
+        } catch (JavaModelException e) {
+            IOException ioe = new IOException("FrameworkJarCache: " + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        throw new IOException("FrameworkJarCache: " + "no android.jar on the classpath of "
+                + javaProject.getProject().getName());
+    }
+
+    /**
+     * Reads every jar through, checking each entry against its CRC, and
+     * deletes the damaged ones along with what interrupted builds left.
+     * 
+     * @return the paths of the jars that were deleted
+     */
+    public static synchronized List<String> verify() {
+        List<String> corrupt = new ArrayList<String>();
+        File[] files = Activator.getDefault().getStateLocation().append(JAR_DIR).toFile()
+                .listFiles();
+        if (files == null)
+            return corrupt;
+        for (File file : files) {
+            if (!file.getName().endsWith(".jar")) {
+                delete(file); // a .tmp jar or .classes directory
+            } else if (!isIntact(file)) {
+                corrupt.add(file.getPath());
+                file.delete();
+            }
+        }
+        return corrupt;
+    }
+
+    private static boolean isIntact(File jar) {
+        byte[] buffer = new byte[8192];
+        try {
+            JarInputStream in = new JarInputStream(new FileInputStream(jar));
+            try {
+                int entries = 0;
+                for (; in.getNextJarEntry() != null; entries++) {
+                    while (in.read(buffer) > 0)
+                        ; // a ZipException if the content doesn't match its CRC
+                }
+                return entries > 0;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void compile(String srcDir, File classes, File androidJar, String codecJar)
+            throws IOException {
+        String[] args = {
+                "-1.5", "-nowarn", "-encoding", "UTF-8",
+                "-bootclasspath", androidJar.getPath(),
+                "-classpath", codecJar,
+                "-d", classes.getPath(),
+                srcDir
+        };
+        StringWriter errors = new StringWriter();
+        if (!BatchCompiler.compile(args, new PrintWriter(new StringWriter()), new PrintWriter(
+                errors), null)) {
+            throw new IOException("FrameworkJarCache: " + "framework sources failed to compile: "
+                    + errors);
+        }
+    }
+
+    private static void writeJar(File classes, File jarFile) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile), manifest);
+        try {
+            CopyPlan plan = CopyPlan.scan(classes.getPath());
+            for (CopyPlan.Entry dir : plan.getDirectories()) {
+                if (dir.getPath().length() > 0)
+                    out.putNextEntry(new JarEntry(dir.getPath() + "/"));
+            }
+            byte[] buffer = new byte[8192];
+            for (CopyPlan.Entry file : plan.getFiles()) {
+                JarEntry entry = new JarEntry(file.getPath());
+                entry.setTime(file.getLastModified());
+                out.putNextEntry(entry);
+                InputStream in = new FileInputStream(new File(classes, file.getPath()));
+                try {
+                    for (int n; (n = in.read(buffer)) > 0;)
+                        out.write(buffer, 0, n);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Adds stylesheet and script references to the head of HTML pages. A page
+ * is tokenized once: references that already load one of the libraries are
+ * pointed at the new location, and the missing ones are inserted before the
+ * first reference of the same kind, or else before </head>. All the edits
+ * are then applied in a single copy of the page.
+ */
+class HtmlHeadInjector {
+
+    private static final String DEFAULT_INDENT = "      ";
+
+    private static final int STYLESHEET = 0;
+    private static final int SCRIPT = 1;
+
+    private static class Reference {
+        final int mKind;
+        final String mUrl;
+        final String mName; // the last segment of the url
+
+        Reference(int kind, String url) {
+            mKind = kind;
+            mUrl = url;
+            mName = url.substring(url.lastIndexOf('/') + 1);
+        }
+
+        /** Whether an existing url loads the same library */
+        boolean matches(String url) {
+            return url.equals(mName) || url.endsWith("/" + mName);
+        }
+
+        String toTag() {
+            return mKind == STYLESHEET ? "<link rel=\"stylesheet\" href=\"" + mUrl
+                    + "\" type=\"text/css\">" : "<script type=\"text/javascript\" src=\"" + mUrl
+                    + "\"></script>";
+        }
+    }
+
+    /** A replacement of the text from mStart to mEnd */
+    private static class Edit implements Comparable<Edit> {
+        final int mStart;
+        final int mEnd;
+        final String mText;
+        final int mOrder;
+
+        Edit(int start, int end, String text, int order) {
+            mStart = start;
+            mEnd = end;
+            mText = text;
+            mOrder = order;
+        }
+
+        public int compareTo(Edit other) {
+            if (mStart != other.mStart)
+                return mStart < other.mStart ? -1 : 1;
+            return mOrder - other.mOrder;
+        }
+    }
+
+    private final List<Reference> mReferences = new ArrayList<Reference>();
+
+    /** Makes every page load the stylesheet at href */
+    HtmlHeadInjector addStylesheet(String href) {
+        mReferences.add(new Reference(STYLESHEET, href));
+        return this;
+    }
+
+    /** Makes every page load the script at src */
+    HtmlHeadInjector addScript(String src) {
+        mReferences.add(new Reference(SCRIPT, src));
+        return this;
+    }
+
+    /**
+     * Returns the page with the references added, or null if the page has no
+     * head to add them to.
+     */
+    String rewrite(String html) {
+        Scan scan = new Scan(html);
+        scan.run();
+
+        List<Edit> edits = scan.mEdits;
+        for (int i = 0; i < mReferences.size(); i++) {
+            Reference reference = mReferences.get(i);
+            if (scan.mFound[i])
+                continue;
+            int anchor = scan.mFirst[reference.mKind];
+            if (anchor < 0)
+                anchor = scan.mHeadEnd;
+            if (anchor < 0)
+                return null;
+            // Go back to the end of the previous line
+            int insertSpot = anchor;
+            while (insertSpot > 0 && Character.isWhitespace(html.charAt(insertSpot - 1)))
+                insertSpot--;
+            String indent = scan.mIndent != null ? scan.mIndent : DEFAULT_INDENT;
+            edits.add(new Edit(insertSpot, insertSpot, "\n" + indent + reference.toTag(), i));
+        }
+        if (edits.isEmpty())
+            return html;
+
+        Collections.sort(edits);
+        StringBuilder result = new StringBuilder(html.length() + 128 * edits.size());
+        int copied = 0;
+        for (Edit edit : edits) {
+            result.append(html, copied, edit.mStart).append(edit.mText);
+            copied = edit.mEnd;
+        }
+        return result.append(html, copied, html.length()).toString();
+    }
+
+    /**
+     * Rewrites the page in place.
+     *
+     * @return false if the page has no head, in which case it is left alone
+     */
+    boolean rewriteFile(String fileName) throws IOException {
+        StringIO.Text page = StringIO.readText(fileName);
+        String result = rewrite(page.mContent);
+        if (result == null)
+            return false;
+        StringIO.write(fileName, result, page.mCharset);
+        return true;
+    }
+
+    /**
+     * Rewrites every .html page directly in wwwDir, up to parallelism pages
+     * at a time. A page without a head is skipped, except for index.html
+     * which must have one.
+     */
+    void rewriteAll(String wwwDir, int parallelism) throws IOException {
+        File[] pages = new File(wwwDir).listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().toLowerCase().endsWith(".html");
+            }
+        });
+        if (pages == null || pages.length == 0)
+            throw new IOException("HtmlHeadInjector: " + "no html pages in " + wwwDir);
+        Arrays.sort(pages);
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(pages.length);
+        for (final File page : pages) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException {
+                    if (!rewriteFile(page.getPath()) && page.getName().equals("index.html")) {
+                        throw new IOException("HtmlHeadInjector: "
+                                + "index.html does not have </head> tag");
+                    }
+                    return null;
+                }
+            });
+        }
+        IoPool.runAll(tasks, parallelism);
+    }
+
+    /**
+     * One pass over the tags of a page. Comments and the content of script
+     * and style elements are skipped whole.
+     */
+    private class Scan {
+        final String mHtml;
+        final String mLower;
+        final List<Edit> mEdits = new ArrayList<Edit>();
+        final boolean[] mFound = new boolean[mReferences.size()];
+        final int[] mFirst = { -1, -1 }; // first stylesheet and script in the head
+        int mHeadEnd = -1;
+        String mIndent; // of the first tag in the head
+        private boolean mInHead;
+        private boolean mSawHead;
+
+        Scan(String html) {
+            mHtml = html;
+            // Lower case char by char, so that the indexes stay the same
+            char[] lower = html.toCharArray();
+            for (int i = 0; i < lower.length; i++)
+                lower[i] = Character.toLowerCase(lower[i]);
+            mLower = new String(lower);
+        }
+
+        void run() {
+            int length = mHtml.length();
+            int i = mLower.indexOf('<');
+            while (i >= 0 && i < length) {
+                if (mLower.startsWith("<!--", i)) {
+                    i = skipTo("-->", i + 4);
+                } else if (mLower.startsWith("</head", i)) {
+                    mHeadEnd = i;
+                    mInHead = false;
+                    i = endOfTag(i);
+                } else if (isTag("head", i)) {
+                    mInHead = mSawHead = true;
+                    i = endOfTag(i);
+                } else if (isTag("body", i)) {
+                    if (mHeadEnd < 0 && mSawHead)
+                        mHeadEnd = i; // the head wasn't closed
+                    mInHead = false;
+                    i = endOfTag(i);
+                } else {
+                    int end = endOfTag(i);
+                    if (mInHead && mIndent == null)
+                        mIndent = indentOf(i);
+                    if (isTag("link", i)) {
+                        tag(STYLESHEET, i, end, "href");
+                    } else if (isTag("script", i)) {
+                        tag(SCRIPT, i, end, "src");
+                        end = skipTo("</script", end);
+                    } else if (isTag("style", i)) {
+                        end = skipTo("</style", end);
+                    }
+                    i = end;
+                }
+                if (i >= 0)
+                    i = mLower.indexOf('<', i);
+            }
+        }
+
+        /** Looks at the url of a link or script tag */
+        private void tag(int kind, int start, int end, String attribute) {
+            int[] value = attributeValue(start, end, attribute);
+            if (value == null)
+                return;
+            if (kind == STYLESHEET && mLower.substring(start, end).indexOf("stylesheet") < 0)
+                return;
+            if (mInHead && mFirst[kind] < 0)
+                mFirst[kind] = start;
+            String url = mHtml.substring(value[0], value[1]);
+            for (int r = 0; r < mReferences.size(); r++) {
+                Reference reference = mReferences.get(r);
+                if (reference.mKind == kind && reference.matches(url)) {
+                    mFound[r] = true;
+                    if (!url.equals(reference.mUrl))
+                        mEdits.add(new Edit(value[0], value[1], reference.mUrl, -1));
+                    break;
+                }
+            }
+        }
+
+        /** Returns the start and end of an attribute's value in the tag */
+        private int[] attributeValue(int start, int end, String name) {
+            int i = start;
+            while ((i = mLower.indexOf(name, i + 1)) > 0 && i < end) {
+                if (!Character.isWhitespace(mLower.charAt(i - 1))) {
+                    continue;
+                }
+                int j = i + name.length();
+                while (j < end && Character.isWhitespace(mLower.charAt(j)))
+                    j++;
+                if (j >= end || mLower.charAt(j) != '=')
+                    continue;
+                j++;
+                while (j < end && Character.isWhitespace(mLower.charAt(j)))
+                    j++;
+                char quote = mLower.charAt(j);
+                if (quote == '"' || quote == '\'') {
+                    int close = mLower.indexOf(quote, j + 1);
+                    return close < 0 ? null : new int[] { j + 1, close };
+                }
+                int k = j;
+                while (k < end && !Character.isWhitespace(mLower.charAt(k))
+                        && mLower.charAt(k) != '>')
+                    k++;
+                return new int[] { j, k };
+            }
+            return null;
+        }
+
+        private boolean isTag(String name, int i) {
+            if (!mLower.startsWith(name, i + 1))
+                return false;
+            int after = i + 1 + name.length();
+            if (after >= mLower.length())
+                return false;
+            char c = mLower.charAt(after);
+            return c == '>' || c == '/' || Character.isWhitespace(c);
+        }
+
+        /** Returns the index just after the '>' closing the tag at i */
+        private int endOfTag(int i) {
+            char quote = 0;
+            for (int j = i + 1; j < mLower.length(); j++) {
+                char c = mLower.charAt(j);
+                if (quote != 0) {
+                    if (c == quote)
+                        quote = 0;
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    return j + 1;
+                }
+            }
+            return mLower.length();
+        }
+
+        private int skipTo(String end, int from) {
+            int i = mLower.indexOf(end, from);
+            return i < 0 ? mLower.length() : i;
+        }
+
+        /** The white space before the tag at i, if it starts its line */
+        private String indentOf(int i) {
+            int j = i;
+            while (j > 0 && (mHtml.charAt(j - 1) == ' ' || mHtml.charAt(j - 1) == '\t'))
+                j--;
+            return j == 0 || mHtml.charAt(j - 1) == '\n' || mHtml.charAt(j - 1) == '\r' ? mHtml
+                    .substring(j, i) : null;
+        }
+    }
+}
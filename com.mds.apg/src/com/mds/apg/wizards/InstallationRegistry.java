@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mds.apg.Activator;
+
+/**
+ * What is known about the PhoneGap and Sencha installations the plug-in has
+ * seen: version, files, total size and content hashes. The registry is kept
+ * in the plug-in state location, and an installation is only walked again
+ * when the modification time of its root directory changes. Population then
+ * looks the installation up instead of scanning it. An edit deep in the tree
+ * doesn't change the root's time, so what is built from the files uses
+ * getChecked, which compares the files it needs with the disk.
+ *
+ * Only the installation a population uses is walked and hashed; the wizard
+ * validates its paths with a DirectoryProbe, which lists a single directory.
+ * Directories that are symbolic links are not followed.
+ */
+class InstallationRegistry {
+
+    private static final String REGISTRY_DIR = "installations";
+    private static final String ROOT = "installation.root";
+    private static final String LAST_MODIFIED = "installation.lastModified";
+    private static final String VERSION = "installation.version";
+    private static final String NAMES = "installation.names";
+    private static final String FILE = "file.";
+
+    /** One file of an installation */
+    private static final class FileInfo {
+        final long mSize;
+        final long mLastModified;
+        final String mHash;
+
+        FileInfo(long size, long lastModified, String hash) {
+            mSize = size;
+            mLastModified = lastModified;
+            mHash = hash;
+        }
+    }
+
+    /** A snapshot of one installation directory */
+    static final class Installation {
+        private final long mLastModified;
+        private final boolean mDirectory;
+        private final String mVersion;
+        private final Set<String> mNames;
+        private final TreeMap<String, FileInfo> mFiles;
+        private final long mTotalBytes;
+
+        private Installation(long lastModified, boolean directory, String version,
+                Set<String> names, TreeMap<String, FileInfo> files) {
+            mLastModified = lastModified;
+            mDirectory = directory;
+            mVersion = version;
+            mNames = names;
+            mFiles = files;
+            long total = 0;
+            for (FileInfo file : files.values())
+                total += file.mSize;
+            mTotalBytes = total;
+        }
+
+        /** Stands for a path that isn't a directory */
+        private static Installation missing(long lastModified) {
+            return new Installation(lastModified, false, null, Collections.<String> emptySet(),
+                    new TreeMap<String, FileInfo>());
+        }
+
+        boolean isDirectory() {
+            return mDirectory;
+        }
+
+        /** Whether the root directory has nothing in it */
+        boolean isEmpty() {
+            return mNames.isEmpty();
+        }
+
+        /** The content of the VERSION file, or null if there is none */
+        String getVersion() {
+            return mVersion;
+        }
+
+        /**
+         * Whether there is a file or directory at path, relative to the root
+         * and using '/'
+         */
+        boolean contains(String path) {
+            if (mNames.contains(path) || mFiles.containsKey(path))
+                return true;
+            String below = mFiles.ceilingKey(path + "/");
+            return below != null && below.startsWith(path + "/");
+        }
+
+        int getFileCount() {
+            return mFiles.size();
+        }
+
+        long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        /** The size of the file at path, or of everything below it */
+        long getTotalBytes(String path) {
+            long total = 0;
+            for (FileInfo file : subMap(path).values())
+                total += file.mSize;
+            FileInfo file = mFiles.get(path);
+            return file == null ? total : total + file.mSize;
+        }
+
+        /**
+         * The files below dir, as BlobStore.ingest would return them: path
+         * relative to dir to content hash.
+         */
+        Map<String, String> getTree(String dir) {
+            Map<String, String> tree = new TreeMap<String, String>();
+            int start = dir.length() + 1;
+            for (Map.Entry<String, FileInfo> file : subMap(dir).entrySet())
+                tree.put(file.getKey().substring(start), file.getValue().mHash);
+            return tree;
+        }
+
+        private SortedMap<String, FileInfo> subMap(String dir) {
+            // '/' + 1 is '0', so this is everything starting with dir + "/"
+            return mFiles.subMap(dir + "/", dir + "0");
+        }
+    }
+
+    private static final Installation NONE = Installation.missing(0);
+
+    private static InstallationRegistry sDefault;
+
+    private final File mDir;
+    private final ConcurrentHashMap<String, Installation> mInstallations =
+            new ConcurrentHashMap<String, Installation>();
+    private final Object mScanLock = new Object();
+
+    InstallationRegistry(File dir) {
+        mDir = dir;
+    }
+
+    /** The registry in the plug-in state location */
+    static synchronized InstallationRegistry getDefault() {
+        if (sDefault == null) {
+            sDefault = new InstallationRegistry(Activator.getDefault().getStateLocation().append(
+                    REGISTRY_DIR).toFile());
+        }
+        return sDefault;
+    }
+
+    /**
+     * Returns the installation at root, walking it first if its root
+     * directory changed since it was last seen. An installation that can't
+     * be walked looks empty.
+     */
+    Installation get(String root) {
+        if (root.length() == 0)
+            return NONE;
+        return refresh(new File(root).getAbsolutePath());
+    }
+
+    /**
+     * The size of the file or directory at path, if it is part of a known
+     * installation, else -1. Doesn't touch the disk.
+     */
+    long getTotalBytes(String path) {
+        String absolute = new File(path).getAbsolutePath();
+        for (Map.Entry<String, Installation> installation : mInstallations.entrySet()) {
+            String root = installation.getKey();
+            if (absolute.equals(root))
+                return installation.getValue().getTotalBytes();
+            if (absolute.startsWith(root + File.separator))
+                return installation.getValue().getTotalBytes(
+                        absolute.substring(root.length() + 1).replace(File.separatorChar, '/'));
+        }
+        return -1;
+    }
+
+    /**
+     * As get, but the files below the given directories, and the VERSION
+     * file, are also compared with the disk by size and modification time.
+     * If any of them changed, or files came or went, the installation is
+     * walked again. Only what changed is hashed.
+     *
+     * @param dirs directories relative to the root, using '/'
+     */
+    Installation getChecked(String root, String... dirs) {
+        Installation installation = get(root);
+        if (!installation.isDirectory())
+            return installation;
+        File dir = new File(root).getAbsoluteFile();
+        if (isCurrent(dir, installation, dirs))
+            return installation;
+        synchronized (mScanLock) {
+            Installation current = rescan(dir.getPath(), dir, dir.lastModified(), installation);
+            mInstallations.put(dir.getPath(), current);
+            return current;
+        }
+    }
+
+    private Installation refresh(String root) {
+        synchronized (mScanLock) {
+            Installation old = mInstallations.get(root);
+            if (old == null)
+                old = load(root);
+            File dir = new File(root);
+            long lastModified = dir.lastModified();
+            boolean directory = dir.isDirectory();
+
+            Installation current = old;
+            if (old == null || old.mLastModified != lastModified || old.mDirectory != directory) {
+                if (directory) {
+                    current = rescan(root, dir, lastModified, old);
+                } else {
+                    current = Installation.missing(lastModified);
+                }
+            }
+            mInstallations.put(root, current);
+            return current;
+        }
+    }
+
+    /** Walks the installation again and saves it; it looks empty if it can't be walked */
+    private Installation rescan(String root, File dir, long lastModified, Installation old) {
+        Installation current = old;
+        try {
+            current = scan(dir, lastModified, old);
+            save(root, current);
+        } catch (IOException e) {
+            Activator.logWarning(current == old ? "Can't read the installation at " + root
+                    : "Can't save what is known about the installation at " + root, e);
+            if (current == old) // else it is only the registry that can't be written
+                current = new Installation(lastModified, true, null, Collections
+                        .<String> emptySet(), new TreeMap<String, FileInfo>());
+        }
+        return current;
+    }
+
+    /** Whether VERSION and the files below dirs are as the installation has them */
+    private static boolean isCurrent(File dir, Installation installation, String[] dirs) {
+        File version = new File(dir, "VERSION");
+        FileInfo knownVersion = installation.mFiles.get("VERSION");
+        if (knownVersion == null ? version.isFile() : !isSame(knownVersion, version.length(),
+                version.lastModified()))
+            return false;
+        for (String sub : dirs) {
+            SortedMap<String, FileInfo> known = installation.subMap(sub);
+            int count = 0;
+            File subDir = new File(dir, sub);
+            if (subDir.isDirectory()) {
+                CopyPlan plan;
+                try {
+                    plan = CopyPlan.scan(subDir.getPath(), false /* followLinks */);
+                } catch (IOException e) {
+                    return false;
+                }
+                for (CopyPlan.Entry entry : plan.getFiles()) {
+                    FileInfo file = known.get(sub + "/" + entry.getPath());
+                    if (file == null || !isSame(file, entry.getSize(), entry.getLastModified()))
+                        return false;
+                    count++;
+                }
+            }
+            if (count != known.size())
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isSame(FileInfo file, long size, long lastModified) {
+        return file.mSize == size && file.mLastModified == lastModified;
+    }
+
+    /** Walks the installation, hashing only files that changed since old */
+    private static Installation scan(File dir, long lastModified, Installation old)
+            throws IOException {
+        CopyPlan plan = CopyPlan.scan(dir.getPath(), false /* followLinks */);
+        TreeMap<String, FileInfo> files = new TreeMap<String, FileInfo>();
+        for (CopyPlan.Entry entry : plan.getFiles()) {
+            FileInfo known = old == null ? null : old.mFiles.get(entry.getPath());
+            if (known == null || known.mSize != entry.getSize()
+                    || known.mLastModified != entry.getLastModified()) {
+                known = new FileInfo(entry.getSize(), entry.getLastModified(), ContentHash
+                        .of(new File(dir, entry.getPath())));
+            }
+            files.put(entry.getPath(), known);
+        }
+        String[] list = dir.list();
+        Set<String> names = list == null ? Collections.<String> emptySet() : new HashSet<String>(
+                Arrays.asList(list));
+        return new Installation(lastModified, true, readVersion(dir), names, files);
+    }
+
+    private static String readVersion(File dir) {
+        try {
+            String version = StringIO.read(new File(dir, "VERSION").getPath()).trim();
+            if (version.matches("[\\w.-]+"))
+                return version;
+        } catch (IOException e) {
+            // no VERSION file
+        }
+        return null;
+    }
+
+    // --- Persistence ----
+
+    private File registryFile(String root) {
+        return new File(mDir, ContentHash.of(root) + ".properties");
+    }
+
+    /** The installation as saved, or null if it wasn't or can't be read */
+    private Installation load(String root) {
+        File file = registryFile(root);
+        if (!file.isFile())
+            return null;
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (!root.equals(properties.getProperty(ROOT)))
+            return null;
+
+        try {
+            TreeMap<String, FileInfo> files = new TreeMap<String, FileInfo>();
+            for (String name : properties.stringPropertyNames()) {
+                if (!name.startsWith(FILE))
+                    continue;
+                String[] value = properties.getProperty(name).split(",", 3);
+                files.put(name.substring(FILE.length()), new FileInfo(Long.parseLong(value[0]),
+                        Long.parseLong(value[1]), value[2]));
+            }
+            String names = properties.getProperty(NAMES, "");
+            return new Installation(Long.parseLong(properties.getProperty(LAST_MODIFIED)), true,
+                    properties.getProperty(VERSION), names.length() == 0 ? Collections
+                            .<String> emptySet() : new HashSet<String>(Arrays.asList(names
+                            .split("/"))), files);
+        } catch (RuntimeException e) {
+            return null; // damaged, so walk the installation again
+        }
+    }
+
+    private void save(String root, Installation installation) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(ROOT, root);
+        properties.setProperty(LAST_MODIFIED, Long.toString(installation.mLastModified));
+        if (installation.mVersion != null)
+            properties.setProperty(VERSION, installation.mVersion);
+        StringBuilder names = new StringBuilder();
+        for (String name : installation.mNames) {
+            if (names.length() > 0)
+                names.append('/');
+            names.append(name);
+        }
+        properties.setProperty(NAMES, names.toString());
+        for (Map.Entry<String, FileInfo> file : installation.mFiles.entrySet()) {
+            FileInfo info = file.getValue();
+            properties.setProperty(FILE + file.getKey(), info.mSize + "," + info.mLastModified
+                    + "," + info.mHash);
+        }
+
+        if (!mDir.isDirectory() && !mDir.mkdirs())
+            throw new IOException("InstallationRegistry: " + "directory Creation Failed: " + mDir);
+        File file = registryFile(root);
+        File temp = new File(mDir, file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, root);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("InstallationRegistry: " + "cannot write " + file);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that copy and rewrite files, shared by all populations running
+ * at the same time. There are FileCopy.getParallelism() of them, so
+ * generating several projects at once doesn't multiply the threads hitting
+ * the disk.
+ */
+final class IoPool {
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private IoPool() {
+    }
+
+    /**
+     * The shared executor. Tasks run on it must not wait for other tasks
+     * queued behind them.
+     */
+    static synchronized ThreadPoolExecutor getExecutor() {
+        int size = FileCopy.getParallelism();
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "PhoneGap file I/O "
+                                    + mCount.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        } else if (size > sExecutor.getMaximumPoolSize()) {
+            sExecutor.setMaximumPoolSize(size);
+            sExecutor.setCorePoolSize(size);
+        } else if (size < sExecutor.getMaximumPoolSize()) {
+            sExecutor.setCorePoolSize(size);
+            sExecutor.setMaximumPoolSize(size);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Runs the tasks with up to parallelism of them at once, the calling
+     * thread being one of the workers, and waits for all of them. Every task
+     * is attempted; failures are reported together in a CopyException, in
+     * the order of the tasks.
+     */
+    static void runAll(final List<? extends Callable<?>> tasks, int parallelism)
+            throws IOException {
+        final IOException[] failures = new IOException[tasks.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(tasks.size());
+        Runnable worker = new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    int i = next.getAndIncrement();
+                    if (i >= failures.length)
+                        return;
+                    try {
+                        tasks.get(i).call();
+                    } catch (IOException e) {
+                        failures[i] = e;
+                    } catch (Exception e) {
+                        failures[i] = new IOException("IoPool: " + e);
+                        failures[i].initCause(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(parallelism, tasks.size()) - 1;
+        List<Future<?>> futures = new ArrayList<Future<?>>(Math.max(0, helpers));
+        for (int i = 0; i < helpers; i++)
+            futures.add(getExecutor().submit(worker));
+        worker.run();
+
+        // Every task has been taken once the calling thread runs out, so only
+        // the helpers still running them are waited for; those that haven't
+        // started would find nothing left to do. A future can't tell the two
+        // apart, as one that is running can still be canceled, hence the latch.
+        if (!Thread.currentThread().isInterrupted()) {
+            for (Future<?> future : futures)
+                future.cancel(false);
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            for (Future<?> future : futures)
+                future.cancel(true);
+            throw new InterruptedIOException("IoPool: " + "interrupted");
+        }
+
+        List<IOException> failed = new ArrayList<IOException>();
+        for (IOException failure : failures) {
+            if (failure != null)
+                failed.add(failure);
+        }
+        if (!failed.isEmpty())
+            throw new CopyException(failed, tasks.size());
+    }
+}
@@ -0,0 +1,654 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.eclipse.core.runtime.FileLocator;
+import org.eclipse.core.runtime.Path;
+
+import com.mds.apg.Activator;
+
+/**
+ * Merges the PhoneGap additions into an Android manifest. The manifest is
+ * scanned once; supports-screens, uses-permission and uses-sdk from a
+ * {@link Fragment} are added where missing, duplicate permissions are
+ * dropped, the application is made debuggable and every activity handles
+ * its own orientation and keyboard changes. The changes are spliced into
+ * the original text, so everything else is kept exactly as it was.
+ */
+class ManifestMerger {
+
+    static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+
+    private static final String TEMPLATE = "templates/manifestAdd.template";
+
+    private static final String[] CONFIG_CHANGES = {
+            "orientation", "keyboardHidden"
+    };
+
+    private static final XMLInputFactory sInputFactory = XMLInputFactory.newInstance();
+    static {
+        sInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        sInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * The manifest elements PhoneGap needs: the supports-screens and uses-sdk
+     * attributes and the uses-permission names, in document order.
+     */
+    static class Fragment {
+        private final Map<String, String> mScreens = new LinkedHashMap<String, String>();
+        private final Set<String> mPermissions = new LinkedHashSet<String>();
+        private final Map<String, String> mSdk = new LinkedHashMap<String, String>();
+        private long mStamp;
+
+        // Parsed fragments of the framework manifests, by path
+        private static final Map<String, Fragment> sCache = new HashMap<String, Fragment>();
+        private static Fragment sTemplate;
+
+        /**
+         * The fragment of an installation's framework/AndroidManifest.xml.
+         * It is parsed once and then reused until the file changes.
+         */
+        static Fragment forManifest(File manifest) throws IOException {
+            String key = manifest.getCanonicalPath();
+            long stamp = manifest.lastModified() ^ manifest.length();
+            synchronized (sCache) {
+                Fragment fragment = sCache.get(key);
+                if (fragment == null || fragment.mStamp != stamp) {
+                    fragment = parse(new StringReader(StringIO.read(key)));
+                    fragment.mStamp = stamp;
+                    sCache.put(key, fragment);
+                }
+                return fragment;
+            }
+        }
+
+        /**
+         * The fragment in the plug-in's templates/manifestAdd.template, which
+         * holds just the elements without a surrounding manifest.
+         */
+        static synchronized Fragment getTemplate() throws IOException {
+            if (sTemplate == null) {
+                InputStream in = FileLocator.openStream(Activator.getDefault().getBundle(),
+                        new Path(TEMPLATE), false);
+                try {
+                    sTemplate = parseElements(new InputStreamReader(in, "UTF-8"));
+                } finally {
+                    in.close();
+                }
+            }
+            return sTemplate;
+        }
+
+        /** Parses manifest elements that have no root element around them */
+        static Fragment parseElements(Reader elements) throws IOException {
+            StringBuilder manifest = new StringBuilder("<manifest xmlns:android=\"" + ANDROID_NS
+                    + "\">");
+            char[] buffer = new char[4096];
+            for (int n; (n = elements.read(buffer)) > 0;)
+                manifest.append(buffer, 0, n);
+            return parse(new StringReader(manifest.append("</manifest>").toString()));
+        }
+
+        static Fragment parse(Reader in) throws IOException {
+            Fragment fragment = new Fragment();
+            try {
+                XMLStreamReader reader = sInputFactory.createXMLStreamReader(in);
+                try {
+                    while (reader.hasNext()) {
+                        if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                            continue;
+                        String name = reader.getLocalName();
+                        if (name.equals("uses-permission")) {
+                            String permission = reader.getAttributeValue(ANDROID_NS, "name");
+                            if (permission != null)
+                                fragment.mPermissions.add(permission);
+                        } else if (name.equals("supports-screens")) {
+                            getAndroidAttributes(reader, fragment.mScreens);
+                        } else if (name.equals("uses-sdk") && fragment.mSdk.isEmpty()) {
+                            getAndroidAttributes(reader, fragment.mSdk);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw xmlError(e);
+            }
+            return fragment;
+        }
+
+        private static void getAndroidAttributes(XMLStreamReader reader, Map<String, String> to) {
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                if (ANDROID_NS.equals(reader.getAttributeNamespace(i)))
+                    to.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+
+        /** Whether there are neither screens nor permissions to add */
+        boolean isEmpty() {
+            return mScreens.isEmpty() && mPermissions.isEmpty();
+        }
+    }
+
+    /**
+     * Returns the fully qualified class name of the activity that handles
+     * MAIN/LAUNCHER in the manifest, or null if there is none.
+     */
+    static String findLauncherActivity(String manifest) throws IOException {
+        try {
+            XMLStreamReader reader =
+                    sInputFactory.createXMLStreamReader(new StringReader(manifest));
+            try {
+                String packageName = "";
+                String activity = null;
+                boolean main = false;
+                boolean launcher = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.END_ELEMENT
+                            && reader.getLocalName().equals("activity")) {
+                        if (main && launcher && activity != null)
+                            return qualifyClass(packageName, activity);
+                        activity = null;
+                        main = launcher = false;
+                    }
+                    if (event != XMLStreamConstants.START_ELEMENT)
+                        continue;
+                    String name = reader.getLocalName();
+                    String value = reader.getAttributeValue(ANDROID_NS, "name");
+                    if (name.equals("manifest")) {
+                        String p = reader.getAttributeValue(null, "package");
+                        packageName = p == null ? "" : p;
+                    } else if (name.equals("activity")) {
+                        activity = value;
+                    } else if (name.equals("action")) {
+                        main |= "android.intent.action.MAIN".equals(value);
+                    } else if (name.equals("category")) {
+                        launcher |= "android.intent.category.LAUNCHER".equals(value);
+                    }
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw xmlError(e);
+        }
+    }
+
+    private static String qualifyClass(String packageName, String name) {
+        if (name.startsWith("."))
+            return packageName + name;
+        return name.indexOf('.') < 0 ? packageName + "." + name : name;
+    }
+
+    private final Fragment mFragment;
+
+    ManifestMerger(Fragment fragment) {
+        mFragment = fragment;
+    }
+
+    /** Merges the fragment into the manifest file, rewriting it in place */
+    void mergeFile(String fileName) throws IOException {
+        StringIO.Text manifest = StringIO.readText(fileName);
+        StringIO.write(fileName, merge(manifest.mContent), manifest.mCharset);
+    }
+
+    String merge(String manifest) throws IOException {
+        return new Merge(manifest).run();
+    }
+
+    /**
+     * One pass over the manifest text. A small scanner finds the tags, and
+     * the changes are spliced into the original text by offset, so whatever
+     * isn't changed stays as it was, down to the quotes, references and line
+     * breaks inside tags. The missing elements are only known at the end
+     * (ADT puts uses-sdk after the application), so the place for them is
+     * marked and they are spliced in when the pass is done.
+     */
+    private class Merge {
+        private final String mText;
+        private final List<Edit> mEdits = new ArrayList<Edit>();
+        private final Set<String> mPermissions = new HashSet<String>();
+        private boolean mHasScreens;
+        private boolean mHasSdk;
+        private Edit mMark;
+        private String mIndent;
+        private String mAndroid = "android"; // the root's prefix for ANDROID_NS
+        private int mSkipFrom = -1; // start of a duplicate being dropped
+        private int mSkipDepth;
+
+        Merge(String manifest) {
+            mText = manifest;
+        }
+
+        String run() throws IOException {
+            List<String> androidPrefixes = new ArrayList<String>(); // by depth
+            int depth = 0;
+            int pos = 0;
+            for (int lt; (lt = mText.indexOf('<', pos)) >= 0;) {
+                if (mText.startsWith("<!--", lt)) {
+                    pos = endOf(lt, "-->");
+                } else if (mText.startsWith("<![CDATA[", lt)) {
+                    pos = endOf(lt, "]]>");
+                } else if (mText.startsWith("<?", lt)) {
+                    pos = endOf(lt, "?>");
+                } else if (mText.startsWith("<!", lt)) {
+                    pos = endOfDeclaration(lt);
+                } else if (mText.startsWith("</", lt)) {
+                    pos = endOf(lt, ">");
+                    if (depth == 0)
+                        throw malformed(lt);
+                    depth--;
+                    androidPrefixes.remove(depth);
+                    if (mSkipFrom >= 0 && depth == mSkipDepth) {
+                        mEdits.add(new Edit(mSkipFrom, pos, ""));
+                        mSkipFrom = -1;
+                    } else if (depth == 0 && mMark == null) {
+                        // No application element, so add at the end
+                        int space = spaceBefore(lt);
+                        mark(space, mText.substring(space, lt) + "    ");
+                    }
+                } else {
+                    Tag tag = new Tag(lt);
+                    pos = tag.mEnd;
+                    String android = tag.getPrefix(ANDROID_NS);
+                    if (android == null && depth > 0)
+                        android = androidPrefixes.get(depth - 1);
+                    if (depth == 0 && android != null)
+                        mAndroid = android;
+                    if (mSkipFrom < 0)
+                        startElement(tag, depth, android);
+                    if (!tag.mEmpty) {
+                        androidPrefixes.add(android);
+                        depth++;
+                    }
+                }
+            }
+            if (depth != 0)
+                throw new IOException("ManifestMerger: " + "unclosed element in the manifest");
+            if (mMark != null)
+                mMark.mText = additions();
+
+            // The edits are in order and don't overlap
+            StringBuilder out = new StringBuilder(mText.length() + 2048);
+            int copied = 0;
+            for (Edit edit : mEdits) {
+                out.append(mText, copied, edit.mStart).append(edit.mText);
+                copied = edit.mEnd;
+            }
+            return out.append(mText, copied, mText.length()).toString();
+        }
+
+        private void startElement(Tag tag, int depth, String android) {
+            String name = tag.mName;
+            if (depth == 1 && name.equals("uses-permission")) {
+                String permission = tag.getValue(android, "name");
+                if (permission != null && !mPermissions.add(permission)) {
+                    // Drop the duplicate along with the space before it
+                    int space = spaceBefore(tag.mStart);
+                    if (tag.mEmpty) {
+                        mEdits.add(new Edit(space, tag.mEnd, ""));
+                    } else {
+                        mSkipFrom = space;
+                        mSkipDepth = depth;
+                    }
+                    return;
+                }
+            }
+            if (depth == 1 && name.equals("application") && mMark == null) {
+                int space = spaceBefore(tag.mStart);
+                mark(space, mText.substring(space, tag.mStart));
+            }
+
+            Map<String, String> extra = new LinkedHashMap<String, String>();
+            if (depth == 1 && name.equals("application")) {
+                if (tag.getValue(android, "debuggable") == null)
+                    extra.put("debuggable", "true");
+            } else if (name.equals("activity")) {
+                Attribute configChanges = tag.get(android, "configChanges");
+                if (configChanges == null) {
+                    extra.put("configChanges", addFlags(null));
+                } else {
+                    String flags = addFlags(configChanges.mValue);
+                    if (!flags.equals(configChanges.mValue)) {
+                        StringBuilder value = new StringBuilder(flags);
+                        escapeAttribute(value, 0, configChanges.mQuote);
+                        mEdits.add(new Edit(configChanges.mValueStart, configChanges.mValueEnd,
+                                value.toString()));
+                    }
+                }
+            } else if (depth == 1 && name.equals("supports-screens")) {
+                mHasScreens = true;
+                for (Map.Entry<String, String> screen : mFragment.mScreens.entrySet()) {
+                    if (tag.getValue(android, screen.getKey()) == null)
+                        extra.put(screen.getKey(), screen.getValue());
+                }
+            } else if (depth == 1 && name.equals("uses-sdk")) {
+                mHasSdk = true;
+            }
+
+            if (!extra.isEmpty()) {
+                StringBuilder attributes = new StringBuilder();
+                for (Map.Entry<String, String> attribute : extra.entrySet()) {
+                    attributes.append(tag.mSeparator).append(
+                            qualified(android == null ? "android" : android, attribute.getKey()))
+                            .append("=\"");
+                    int start = attributes.length();
+                    attributes.append(attribute.getValue());
+                    escapeAttribute(attributes, start, '"');
+                    attributes.append('"');
+                }
+                mEdits.add(new Edit(tag.mAttributesEnd, tag.mAttributesEnd, attributes
+                        .toString()));
+            }
+        }
+
+        /** Marks where the missing elements go and how to indent them */
+        private void mark(int at, String indent) {
+            mMark = new Edit(at, at, "");
+            mEdits.add(mMark);
+            mIndent = indent;
+        }
+
+        /** The missing PhoneGap elements, each preceded by the indent */
+        private String additions() {
+            StringBuilder additions = new StringBuilder();
+            if (!mHasScreens && !mFragment.mScreens.isEmpty())
+                androidElement(additions, "supports-screens", mFragment.mScreens);
+            for (String permission : mFragment.mPermissions) {
+                if (!mPermissions.contains(permission))
+                    androidElement(additions, "uses-permission",
+                            Collections.singletonMap("name", permission));
+            }
+            if (!mHasSdk && !mFragment.mSdk.isEmpty())
+                androidElement(additions, "uses-sdk", mFragment.mSdk);
+            return additions.toString();
+        }
+
+        private void androidElement(StringBuilder to, String name, Map<String, String> attributes) {
+            to.append(mIndent).append('<').append(name);
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                to.append(' ').append(qualified(mAndroid, attribute.getKey())).append("=\"");
+                int start = to.length();
+                to.append(attribute.getValue());
+                escapeAttribute(to, start, '"');
+                to.append('"');
+            }
+            to.append(" />");
+        }
+
+        /** The start of the white space that ends at end */
+        private int spaceBefore(int end) {
+            int start = end;
+            while (start > 0 && Character.isWhitespace(mText.charAt(start - 1)))
+                start--;
+            return start;
+        }
+
+        private int endOf(int start, String terminator) throws IOException {
+            int end = mText.indexOf(terminator, start);
+            if (end < 0)
+                throw malformed(start);
+            return end + terminator.length();
+        }
+
+        /** The end of a DOCTYPE, which may have an internal subset */
+        private int endOfDeclaration(int start) throws IOException {
+            int brackets = 0;
+            for (int i = start + 2; i < mText.length(); i++) {
+                char c = mText.charAt(i);
+                if (c == '[') {
+                    brackets++;
+                } else if (c == ']') {
+                    brackets--;
+                } else if (c == '>' && brackets == 0) {
+                    return i + 1;
+                }
+            }
+            throw malformed(start);
+        }
+
+        /** A start tag, with the place of each attribute in the text */
+        private class Tag {
+            final int mStart;
+            final int mEnd; // just after the '>'
+            final String mName;
+            final boolean mEmpty;
+            final int mAttributesEnd; // where new attributes go
+            final String mSeparator; // the space before the last attribute
+            private final Map<String, Attribute> mAttributes = new HashMap<String, Attribute>();
+
+            Tag(int start) throws IOException {
+                mStart = start;
+                int i = nameEnd(start + 1);
+                mName = mText.substring(start + 1, i);
+                if (mName.length() == 0)
+                    throw malformed(start);
+                int attributesEnd = i;
+                String separator = " ";
+                while (true) {
+                    int space = i;
+                    while (i < mText.length() && Character.isWhitespace(mText.charAt(i)))
+                        i++;
+                    if (i >= mText.length())
+                        throw malformed(start);
+                    if (mText.charAt(i) == '>') {
+                        mEmpty = false;
+                        mEnd = i + 1;
+                        break;
+                    }
+                    if (mText.startsWith("/>", i)) {
+                        mEmpty = true;
+                        mEnd = i + 2;
+                        break;
+                    }
+                    if (i == space)
+                        throw malformed(start);
+                    separator = mText.substring(space, i);
+
+                    int nameStart = i;
+                    i = nameEnd(i);
+                    String name = mText.substring(nameStart, i);
+                    while (i < mText.length() && Character.isWhitespace(mText.charAt(i)))
+                        i++;
+                    if (name.length() == 0 || i >= mText.length() || mText.charAt(i) != '=')
+                        throw malformed(start);
+                    i++;
+                    while (i < mText.length() && Character.isWhitespace(mText.charAt(i)))
+                        i++;
+                    char quote = i < mText.length() ? mText.charAt(i) : 0;
+                    if (quote != '"' && quote != '\'')
+                        throw malformed(start);
+                    int valueEnd = mText.indexOf(quote, i + 1);
+                    if (valueEnd < 0)
+                        throw malformed(start);
+                    mAttributes.put(name, new Attribute(i + 1, valueEnd, quote, unescape(mText
+                            .substring(i + 1, valueEnd))));
+                    i = valueEnd + 1;
+                    attributesEnd = i;
+                }
+                mAttributesEnd = attributesEnd;
+                mSeparator = separator;
+            }
+
+            private int nameEnd(int i) {
+                while (i < mText.length()) {
+                    char c = mText.charAt(i);
+                    if (Character.isWhitespace(c) || c == '>' || c == '/' || c == '=')
+                        break;
+                    i++;
+                }
+                return i;
+            }
+
+            Attribute get(String prefix, String name) {
+                return prefix == null ? null : mAttributes.get(qualified(prefix, name));
+            }
+
+            String getValue(String prefix, String name) {
+                Attribute attribute = get(prefix, name);
+                return attribute == null ? null : attribute.mValue;
+            }
+
+            /** The prefix this tag declares for the namespace, if any */
+            String getPrefix(String namespace) {
+                for (Map.Entry<String, Attribute> attribute : mAttributes.entrySet()) {
+                    if (attribute.getKey().startsWith("xmlns:")
+                            && namespace.equals(attribute.getValue().mValue))
+                        return attribute.getKey().substring("xmlns:".length());
+                }
+                return null;
+            }
+        }
+    }
+
+    /** An attribute value: where it is in the text, and what it says */
+    private static class Attribute {
+        final int mValueStart;
+        final int mValueEnd;
+        final char mQuote;
+        final String mValue;
+
+        Attribute(int valueStart, int valueEnd, char quote, String value) {
+            mValueStart = valueStart;
+            mValueEnd = valueEnd;
+            mQuote = quote;
+            mValue = value;
+        }
+    }
+
+    /** Replaces the text from mStart to mEnd */
+    private static class Edit {
+        final int mStart;
+        final int mEnd;
+        String mText;
+
+        Edit(int start, int end, String text) {
+            mStart = start;
+            mEnd = end;
+            mText = text;
+        }
+    }
+
+    private static String qualified(String prefix, String name) {
+        return prefix == null || prefix.length() == 0 ? name : prefix + ":" + name;
+    }
+
+    /** Escapes the text from start on for use in an attribute value in those quotes */
+    private static void escapeAttribute(StringBuilder text, int start, char quote) {
+        for (int i = text.length() - 1; i >= start; i--) {
+            switch (text.charAt(i)) {
+            case '&': text.replace(i, i + 1, "&amp;"); break;
+            case '<': text.replace(i, i + 1, "&lt;"); break;
+            case '"': if (quote == '"') text.replace(i, i + 1, "&quot;"); break;
+            case '\'': if (quote == '\'') text.replace(i, i + 1, "&apos;"); break;
+            default: break;
+            }
+        }
+    }
+
+    /** Resolves the predefined entity and character references */
+    private static String unescape(String value) {
+        if (value.indexOf('&') < 0)
+            return value;
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int semicolon = c == '&' ? value.indexOf(';', i) : -1;
+            if (semicolon < 0) {
+                result.append(c);
+                continue;
+            }
+            String entity = value.substring(i + 1, semicolon);
+            if (entity.equals("amp")) {
+                result.append('&');
+            } else if (entity.equals("lt")) {
+                result.append('<');
+            } else if (entity.equals("gt")) {
+                result.append('>');
+            } else if (entity.equals("quot")) {
+                result.append('"');
+            } else if (entity.equals("apos")) {
+                result.append('\'');
+            } else if (entity.startsWith("#")) {
+                try {
+                    int code = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16)
+                            : Integer.parseInt(entity.substring(1));
+                    result.appendCodePoint(code);
+                } catch (IllegalArgumentException e) {
+                    result.append(c);
+                    continue;
+                }
+            } else {
+                result.append(c);
+                continue;
+            }
+            i = semicolon;
+        }
+        return result.toString();
+    }
+
+    private static IOException malformed(int offset) {
+        return new IOException("ManifestMerger: " + "malformed manifest at offset " + offset);
+    }
+
+    /** Adds the PhoneGap configChanges flags to those already there */
+    private static String addFlags(String flags) {
+        if (flags == null)
+            flags = "";
+        StringBuilder result = new StringBuilder(flags);
+        Set<String> present = new HashSet<String>(Arrays.asList(flags.split("\\|")));
+        for (String flag : CONFIG_CHANGES) {
+            if (!present.contains(flag)) {
+                if (result.length() > 0)
+                    result.append('|');
+                result.append(flag);
+            }
+        }
+        return result.toString();
+    }
+
+    private static IOException xmlError(XMLStreamException e) {
+        IOException error = new IOException("ManifestMerger: " + e.getMessage());
+        error.initCause(e);
+        return error;
+    }
+}
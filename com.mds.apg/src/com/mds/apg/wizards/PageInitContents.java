@@ -27,7 +27,6 @@ import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Group;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Text;
-import java.io.File;
 
 public final class PageInitContents extends WizardSection{
 
@@ -146,27 +145,20 @@ public final class PageInitContents extends WizardSection{
     /**
      * Validates the location path field.
      *
-     * @return The wizard message type, one of MSG_ERROR, MSG_WARNING or MSG_NONE.
+     * @return The wizard message type, one of MSG_ERROR, MSG_WARNING, MSG_PENDING or MSG_NONE.
      */
     protected int validate() {
-        File locationDir = new File(getValue());
-        if (!locationDir.exists() || !locationDir.isDirectory()) {
+        DirectoryProbe locationDir = mWizardPage.probeDirectory(getValue());
+        if (locationDir == null) {
+            return mWizardPage.setPending(getValue());
+        } else if (!locationDir.isDirectory()) {
             return mWizardPage.setStatus("A directory name must be specified.", AndroidPgProjectCreationPage.MSG_ERROR);
         } else {
-            String[] l = locationDir.list();
-            if (l.length == 0) {
+            if (locationDir.isEmpty()) {
                 return mWizardPage.setStatus("The location directory is empty. It should include the source to populate the project", 
                         AndroidPgProjectCreationPage.MSG_ERROR);
             }
-            boolean foundIndexHtml = false;
-
-            for (String s : l) {
-                if (s.equals("index.html")) {
-                    foundIndexHtml = true;
-                    break;
-                }
-            }
-            if (!foundIndexHtml) {
+            if (!locationDir.contains("index.html")) {
                 return mWizardPage.setStatus("The location directory must include an index.html file", 
                         AndroidPgProjectCreationPage.MSG_ERROR);
             }
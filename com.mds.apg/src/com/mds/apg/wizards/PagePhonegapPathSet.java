@@ -22,7 +22,6 @@ import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Text;
-import java.io.File;
 
 public final class PagePhonegapPathSet extends WizardSection {
 
@@ -92,28 +91,20 @@ public final class PagePhonegapPathSet extends WizardSection {
      * Validates the phonegap path field. Make sure there is at least an example
      * and framework sub-directory
      * 
-     * @return The wizard message type, one of MSG_ERROR, MSG_WARNING or
-     *         MSG_NONE.
+     * @return The wizard message type, one of MSG_ERROR, MSG_WARNING,
+     *         MSG_PENDING or MSG_NONE.
      */
     int validate() {
-        File phonegapDir = new File(getValue());
-        if (!phonegapDir.exists() || !phonegapDir.isDirectory()) {
+        DirectoryProbe phonegapDir = mWizardPage.probeDirectory(getValue());
+        if (phonegapDir == null) {
+            return mWizardPage.setPending(getValue());
+        } else if (!phonegapDir.isDirectory()) {
             return mWizardPage.setStatus("A phonegap directory name must be specified.",  AndroidPgProjectCreationPage.MSG_ERROR);
         } else {
-            String[] l = phonegapDir.list();
-            if (l.length == 0) {
+            if (phonegapDir.isEmpty()) {
                 return mWizardPage.setStatus("The phonegap directory is empty.", AndroidPgProjectCreationPage.MSG_ERROR);
             }
-            boolean foundFramework = false;
-            boolean foundExample = false;
-
-            for (String s : l) {
-                if (s.equals("example"))
-                    foundExample = true;
-                if (s.equals("framework"))
-                    foundFramework = true;
-            }
-            if ((!foundFramework) || (!foundExample)) {
+            if (!phonegapDir.contains("framework") || !phonegapDir.contains("example")) {
                 return mWizardPage.setStatus(
                                 "The phonegap directory has been corrupted. It is missing the framework and/or example subdirectory",
                                 AndroidPgProjectCreationPage.MSG_ERROR);
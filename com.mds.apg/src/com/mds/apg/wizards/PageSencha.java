@@ -199,15 +199,17 @@ public class PageSencha extends WizardSection {
         if (!senchaChecked())
             return AndroidPgProjectCreationPage.MSG_NONE;
 
-        File locationDir = new File(getValue());
-        if (!locationDir.exists() || !locationDir.isDirectory()) {
+        DirectoryProbe locationDir = mWizardPage.probeDirectory(getValue());
+        if (locationDir == null) {
+            return mWizardPage.setPending(getValue());
+        }
+        if (!locationDir.isDirectory()) {
             return mWizardPage.setStatus("A directory name must be specified.",
                     AndroidPgProjectCreationPage.MSG_ERROR);
         }
         
         // If the directory exists, make sure it's not empty
-        String[] l = locationDir.list();
-        if (l.length == 0) {
+        if (locationDir.isEmpty()) {
             return mWizardPage.setStatus(
                     "The directory is empty. It should be the location of your Sencha download",
                     AndroidPgProjectCreationPage.MSG_ERROR);
@@ -216,26 +218,19 @@ public class PageSencha extends WizardSection {
         // make sure directory includes sencha-touch.js and resources.
         // If kitchen sink box is checked, make sure kitchen sink is in examples
         
-         boolean foundSenchaJs = false;
-         boolean foundResources = false;
-         boolean foundExamples = false;
-        
-        for (String s : l) {
-            if (s.equals("sencha-touch.js")) {
-                foundSenchaJs = true;
-            } else if (s.equals("resources")) {
-                foundResources = true;
-            } else if (s.equals("examples")) {
-                foundExamples = true;
-            }
-         }
-         if (!foundSenchaJs || !foundResources) {
+         if (!locationDir.contains("sencha-touch.js") || !locationDir.contains("resources")) {
              return mWizardPage.setStatus("The sencha directory must include a sencha-touch.js " +
                      "and resources directory", AndroidPgProjectCreationPage.MSG_ERROR);
          }
-         if (!foundExamples && useSenchaKitchenSink()) {
-             return mWizardPage.setStatus("The sencha directory must include a kitchensink subdirectory " +
-                     "in the examples directory", AndroidPgProjectCreationPage.MSG_ERROR);
+         if (useSenchaKitchenSink()) {
+             DirectoryProbe kitchenSink = mWizardPage.probeDirectory(new File(getValue(),
+                     "examples/kitchensink").getPath());
+             if (kitchenSink == null)
+                 return mWizardPage.setPending(getValue());
+             if (!kitchenSink.isDirectory())
+                 return mWizardPage.setStatus("The sencha directory must include a kitchensink " +
+                     "subdirectory in the examples directory",
+                     AndroidPgProjectCreationPage.MSG_ERROR);
          }
         
         // TODO more validation
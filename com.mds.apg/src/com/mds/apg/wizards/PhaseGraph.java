@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.SubProgressMonitor;
+
+import com.mds.apg.Activator;
+
+/**
+ * The steps of a population as a dependency graph. Workspace phases run on
+ * the calling thread, which holds the project's scheduling rule. File phases
+ * run on the IoPool threads as soon as the phases they depend on are done,
+ * so independent copies overlap. Each phase gets its own split of the
+ * progress monitor, and its time is printed when debugging.
+ */
+class PhaseGraph {
+
+    /** One step of a population */
+    abstract static class Phase {
+        private final String mName;
+        private final boolean mWorkspace;
+        private final int mWork;
+        private final List<Phase> mDependencies = new ArrayList<Phase>();
+
+        /**
+         * @param workspace whether the phase changes the workspace, and so
+         *            must run on the thread that holds the rule
+         * @param work its share of the progress
+         */
+        Phase(String name, boolean workspace, int work) {
+            mName = name;
+            mWorkspace = workspace;
+            mWork = work;
+        }
+
+        /** Makes this phase wait for the given ones */
+        Phase after(Phase... phases) {
+            mDependencies.addAll(Arrays.asList(phases));
+            return this;
+        }
+
+        abstract void run(IProgressMonitor monitor) throws CoreException, IOException,
+                URISyntaxException;
+
+        /**
+         * Runs the phase in its share of progress, printing how long it took
+         * when debugging. The share is used up when the phase is done, whether
+         * or not the phase reported any work of its own.
+         */
+        private Phase runTimed(IProgressMonitor progress) throws CoreException, IOException,
+                URISyntaxException {
+            long start = System.currentTimeMillis();
+            IProgressMonitor share = new SubProgressMonitor(progress, mWork);
+            share.beginTask(mName, 1);
+            IProgressMonitor monitor = new SubProgressMonitor(share, 1);
+            try {
+                run(monitor);
+            } finally {
+                monitor.done();
+                share.done();
+                if (Activator.getDefault().isDebugging()) {
+                    System.out.println("Phase " + mName + ": "
+                            + (System.currentTimeMillis() - start) + " ms");
+                }
+            }
+            return this;
+        }
+    }
+
+    private final List<Phase> mPhases = new ArrayList<Phase>();
+
+    /** Adds a phase; it runs once the phases it was made to wait for have */
+    Phase add(Phase phase) {
+        mPhases.add(phase);
+        return phase;
+    }
+
+    /**
+     * Runs all phases. Once one fails or the monitor is canceled, no new
+     * phase is started; the running ones are waited for, and the first
+     * failure is thrown.
+     */
+    void run(String taskName, final IProgressMonitor monitor) throws CoreException, IOException,
+            URISyntaxException {
+        int total = 0;
+        for (Phase phase : mPhases)
+            total += phase.mWork;
+        // The phases report from several threads at once. A SubMonitor would
+        // complete one child as soon as the next is made, so each phase gets
+        // a SubProgressMonitor of its own on a synchronized parent instead.
+        final IProgressMonitor progress = new SynchronizedMonitor(SubMonitor.convert(monitor,
+                taskName, total));
+
+        Set<Phase> started = new HashSet<Phase>();
+        Set<Phase> done = new HashSet<Phase>();
+        Map<Future<Phase>, Phase> running = new HashMap<Future<Phase>, Phase>();
+        CompletionService<Phase> completion = new ExecutorCompletionService<Phase>(IoPool
+                .getExecutor());
+        Throwable failure = null;
+        try {
+            while (done.size() < mPhases.size()) {
+                if (failure == null && monitor.isCanceled())
+                    failure = new OperationCanceledException();
+
+                Phase next = null;
+                if (failure == null) {
+                    for (final Phase phase : mPhases) {
+                        if (started.contains(phase) || !done.containsAll(phase.mDependencies))
+                            continue;
+                        if (phase.mWorkspace) {
+                            if (next == null)
+                                next = phase;
+                        } else {
+                            started.add(phase);
+                            running.put(completion.submit(new Callable<Phase>() {
+                                public Phase call() throws Exception {
+                                    return phase.runTimed(progress);
+                                }
+                            }), phase);
+                        }
+                    }
+                }
+
+                if (next != null) {
+                    started.add(next);
+                    try {
+                        next.runTimed(progress);
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                    done.add(next);
+                } else if (!running.isEmpty()) {
+                    Future<Phase> future = completion.take();
+                    Phase phase = running.remove(future);
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null)
+                            failure = e.getCause();
+                    }
+                    done.add(phase);
+                } else if (failure == null) {
+                    throw new IllegalStateException("PhaseGraph: " + "phases wait for each other");
+                } else {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new OperationCanceledException();
+            for (Future<Phase> future : running.keySet())
+                future.cancel(true);
+        }
+
+        if (failure instanceof CoreException)
+            throw (CoreException) failure;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof URISyntaxException)
+            throw (URISyntaxException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new IllegalStateException(failure);
+    }
+
+    /** Lets the phases share one monitor */
+    private static class SynchronizedMonitor implements IProgressMonitor {
+        private final IProgressMonitor mMonitor;
+
+        SynchronizedMonitor(IProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        public synchronized void beginTask(String name, int totalWork) {
+            mMonitor.beginTask(name, totalWork);
+        }
+
+        public synchronized void done() {
+            mMonitor.done();
+        }
+
+        public synchronized void internalWorked(double work) {
+            mMonitor.internalWorked(work);
+        }
+
+        public synchronized boolean isCanceled() {
+            return mMonitor.isCanceled();
+        }
+
+        public synchronized void setCanceled(boolean value) {
+            mMonitor.setCanceled(value);
+        }
+
+        public synchronized void setTaskName(String name) {
+            mMonitor.setTaskName(name);
+        }
+
+        public synchronized void subTask(String name) {
+            mMonitor.subTask(name);
+        }
+
+        public synchronized void worked(int work) {
+            mMonitor.worked(work);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+import com.mds.apg.Activator;
+
+/**
+ * phonegap.js built once per set of framework/assets/js inputs and reused
+ * by every project. The cache key is a hash over the input names and their
+ * content hashes (looked up in the InstallationRegistry, which only stats
+ * the inputs unless they changed); the value is the hash of the built file in the store.
+ */
+class PhonegapJsCache {
+
+    private static final String CACHE_FILE = "phonegap-js.properties";
+    private static final String BASE = "phonegap.js.base";
+
+    private static Properties sIndex;
+
+    /**
+     * Returns the store hash of the phonegap.js of the PhoneGap installation
+     * at phonegapDir, building it only if these inputs haven't been built
+     * before.
+     */
+    static synchronized String get(BlobStore store, String phonegapDir) throws IOException {
+        String jsDirName = phonegapDir + "/" + "framework" + "/" + "assets" + "/" + "js";
+        String key = inputKey(InstallationRegistry.getDefault().getChecked(phonegapDir,
+                "framework/assets/js").getTree("framework/assets/js"));
+        Properties index = getIndex();
+        String hash = index.getProperty(key);
+        if (hash != null && store.contains(hash))
+            return hash;
+
+        File phonegapJs = File.createTempFile("phonegap", ".js");
+        try {
+            FileCopy.createPhonegapJs(jsDirName, phonegapJs.getPath());
+            hash = store.ingestFile(phonegapJs);
+        } finally {
+            phonegapJs.delete();
+        }
+        index.setProperty(key, hash);
+        saveIndex(index);
+        return hash;
+    }
+
+    /** The inputs in the order getPhonegapJsInputs gives them */
+    private static String inputKey(Map<String, String> tree) {
+        StringBuilder key = new StringBuilder();
+        key.append(BASE).append('=').append(tree.get(BASE)).append('\n');
+        for (Map.Entry<String, String> input : tree.entrySet()) {
+            String name = input.getKey();
+            if (!name.equals(BASE) && name.indexOf('/') < 0)
+                key.append(name).append('=').append(input.getValue()).append('\n');
+        }
+        return ContentHash.of(key.toString());
+    }
+
+    private static File getIndexFile() {
+        return Activator.getDefault().getStateLocation().append(CACHE_FILE).toFile();
+    }
+
+    private static Properties getIndex() throws IOException {
+        if (sIndex == null) {
+            sIndex = new Properties();
+            File file = getIndexFile();
+            if (file.isFile()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    sIndex.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return sIndex;
+    }
+
+    private static void saveIndex(Properties index) throws IOException {
+        OutputStream out = new FileOutputStream(getIndexFile());
+        try {
+            index.store(out, "phonegap.js builds, by input hash");
+        } finally {
+            out.close();
+        }
+    }
+}
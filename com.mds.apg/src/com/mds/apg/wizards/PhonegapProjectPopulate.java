@@ -26,21 +26,70 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IProjectDescription;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.resources.WorkspaceJob;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Path;
-import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.SubProgressMonitor;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.MultiRule;
+import org.eclipse.jdt.core.IBuffer;
 import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.ICompilationUnit;
 import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IType;
 import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.wst.jsdt.core.IIncludePathEntry;
+import org.eclipse.wst.jsdt.core.IJavaScriptProject;
+import org.eclipse.wst.jsdt.core.JavaScriptCore;
 
-class PhonegapProjectPopulate {
+import com.mds.apg.Activator;
+import com.mds.apg.classpath.PhonegapFrameworkContainer;
+import com.mds.apg.wizards.PhaseGraph.Phase;
+
+/**
+ * Adds PhoneGap to a new Android project. The wizard is one caller; populate
+ * is the entry point for everybody else, such as the batch generator.
+ */
+public class PhonegapProjectPopulate {
+
+    // The edits that turn the ADT main activity into a DroidGap one
+    private static final TextRewriter JAVA_MAIN_REWRITER = new TextRewriter();
+    static {
+        // Import com.phonegap instead of Activity
+        JAVA_MAIN_REWRITER.addLiteral("import android.app.Activity;", "import com.phonegap.*;");
+
+        // Change superclass to DroidGap instead of Activity
+        JAVA_MAIN_REWRITER.addLiteral("extends Activity", "extends DroidGap");
+
+        // Change to start with index.html
+        JAVA_MAIN_REWRITER.addLiteral("setContentView(R.layout.main);",
+                "super.loadUrl(\"file:///android_asset/www/index.html\");");
+    }
+
+    // Adds or relocates the sencha-touch references in the www pages
+    private static final HtmlHeadInjector SENCHA_HTML_INJECTOR = new HtmlHeadInjector()
+            .addStylesheet("sencha/resources/css/sencha-touch.css")
+            .addScript("sencha/sencha-touch.js");
+
+    // Fingerprints of the www sources, kept in the project's working location
+    private static final String WWW_MANIFEST = "www.manifest";
 
     /**
      * Creates the actual project(s). This is run asynchronously in a different
@@ -53,19 +102,60 @@ class PhonegapProjectPopulate {
      *             fails to create or modify the project or if it is canceled by
      *             the user.
      */
-    static void createProjectAsync(IProgressMonitor monitor, PageInfo pageInfo)
+    static void createProjectAsync(IProgressMonitor monitor, final PageInfo pageInfo)
            throws InvocationTargetException {
-        monitor.beginTask("Create Android Project", 100);
         try {
-            updateProjectWithPhonegap(monitor, pageInfo);
-
+            populate(pageInfo, monitor);
         } catch (CoreException e) {
-            throw new InvocationTargetException(e);
-        } catch (IOException e) {
-            throw new InvocationTargetException(e);
-        } catch (URISyntaxException e) {
-            throw new InvocationTargetException(e);
+            // Report I/O problems as they were thrown
+            Throwable cause = e.getStatus().getException();
+            throw new InvocationTargetException(cause instanceof IOException
+                    || cause instanceof URISyntaxException ? cause : e);
+        }
+    }
+
+    /**
+     * Adds PhoneGap to the Android project described by pageInfo, which must
+     * already exist in the workspace with its manifest, main activity and
+     * res directory. Only the project is locked, so this can run from any
+     * thread that doesn't hold a conflicting scheduling rule.
+     * 
+     * @throws CoreException if the project can't be updated. I/O problems
+     *             are the status exception.
+     * @throws OperationCanceledException if the monitor is canceled
+     */
+    public static void populate(final PageInfo pageInfo, IProgressMonitor monitor)
+            throws CoreException {
+        monitor.beginTask("Create Android Project", 100);
+        FileCopy.getStatistics().reset();
+        StringIO.getStatistics().reset();
+        BlobStore store = BlobStore.getDefault();
+        store.acquire();
+        try {
+            // Lock only the new project, and send one delta for all the changes
+            IProject project = pageInfo.mAndroidProject;
+            IWorkspace workspace = project.getWorkspace();
+            ISchedulingRule rule = MultiRule.combine(project, workspace.getRuleFactory().modifyRule(
+                    project));
+            workspace.run(new IWorkspaceRunnable() {
+                public void run(IProgressMonitor monitor) throws CoreException {
+                    try {
+                        updateProjectWithPhonegap(monitor, pageInfo);
+                    } catch (IOException e) {
+                        throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                                e.getMessage(), e));
+                    } catch (URISyntaxException e) {
+                        throw new CoreException(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                                e.getMessage(), e));
+                    }
+                }
+            }, rule, IWorkspace.AVOID_UPDATE, new SubProgressMonitor(monitor, 100));
+            if (Activator.getDefault().isDebugging()) {
+                System.out.println("FileCopy: " + FileCopy.getStatistics());
+                System.out.println("StringIO: " + StringIO.getStatistics());
+            }
         } finally {
+            store.release();
             monitor.done();
         }
     }
@@ -78,9 +168,14 @@ class PhonegapProjectPopulate {
      * 4. Handle project add-ins like Sencha and JQuery Mobile
      * 5. Update the AndroidManifest file 
      * 6. Fill the res directory with drawables and layout
-     * 7. Update the project nature so that JavaScript files are recognize 
-     * 8. Refresh the project with the updated disc files 
-     * 9. Do a clean build - TODO still necessary with ADT 8.0.1?
+     * 7. Update the project nature so that JavaScript files are recognize,
+     *    leaving the vendor libraries out of the JavaScript sources
+     * 8. Refresh the files and trees that were written on disc
+     * 9. Start an incremental build in the background
+     * 
+     * The tasks run as a PhaseGraph: what only writes files runs beside the
+     * workspace changes, as soon as what it needs is there. The manifest
+     * waits for the main java file, which looks up its launcher activity.
      * 
      * @param monitor An existing monitor.
      * @throws InvocationTargetException to wrap any unmanaged exception and
@@ -89,44 +184,191 @@ class PhonegapProjectPopulate {
      *             the user.
      */
 
-    static private void updateProjectWithPhonegap(IProgressMonitor monitor, PageInfo pageInfo)
-            throws CoreException, IOException, URISyntaxException {
+    static private void updateProjectWithPhonegap(IProgressMonitor monitor,
+            final PageInfo pageInfo) throws CoreException, IOException, URISyntaxException {
 
-        updateJavaMain(pageInfo.mDestinationDirectory);
-        getPhonegapJar(monitor, pageInfo);
-        getWWWSources(monitor, pageInfo);
-        if (pageInfo.mSenchaChecked)
-            setupSencha(monitor, pageInfo);
-        phonegapizeAndroidManifest(pageInfo);
-        getResFiles(monitor, pageInfo);
-        IProject newAndroidProject = pageInfo.mAndroidProject;
-        addJsNature(monitor, newAndroidProject);
-        newAndroidProject.refreshLocal(2 /* DEPTH_INFINITE */, monitor);
-        newAndroidProject.build(IncrementalProjectBuilder.CLEAN_BUILD, monitor);
+        final IProject newAndroidProject = pageInfo.mAndroidProject;
+        final ResourceTracker tracker = new ResourceTracker(newAndroidProject);
+        final File[] jars = new File[2]; // android.jar, then phonegap.jar
+        final String wwwDir = pageInfo.mDestinationDirectory + "assets/www/";
+        final ProjectSnapshot snapshot = new ProjectSnapshot(pageInfo, wwwDir);
+        int senchaWork = getSenchaWork(pageInfo, 28);
+        PhaseGraph graph = new PhaseGraph();
+
+        Phase javaMain = graph.add(new Phase("Java main", true, 5) {
+            void run(IProgressMonitor monitor) throws CoreException, IOException {
+                updateJavaMain(monitor, pageInfo, tracker);
+            }
+        });
+        Phase target = graph.add(new Phase("Android target", true, 1) {
+            void run(IProgressMonitor monitor) {
+                try {
+                    jars[0] = FrameworkJarCache.findAndroidJar(JavaCore.create(newAndroidProject));
+                } catch (IOException e) {
+                    // phonegap.jar then falls back to the framework sources
+                    Activator.logWarning("Can't find the Android target's android.jar", e);
+                }
+            }
+        });
+        Phase jar = graph.add(new Phase("phonegap.jar", false, 8) {
+            void run(IProgressMonitor monitor) throws IOException {
+                jars[1] = getPhonegapJar(pageInfo, jars[0], tracker);
+            }
+        }.after(target, javaMain)); // the fallback puts sources where Java main looks
+        Phase classpath = graph.add(new Phase("classpath", true, 1) {
+            void run(IProgressMonitor monitor) throws CoreException {
+                addFrameworkClasspath(monitor, pageInfo, jars[1]);
+            }
+        }.after(jar));
+        Phase folders = graph.add(new Phase("www folders", true, 1) {
+            void run(IProgressMonitor monitor) throws CoreException {
+                addWWWDirectories(monitor, pageInfo);
+            }
+        });
+        Phase lookUp = graph.add(new Phase("snapshot lookup", false, 1) {
+            void run(IProgressMonitor monitor) {
+                snapshot.lookUp();
+            }
+        });
+        Phase www = graph.add(new Phase("www", false, 28 - senchaWork) {
+            void run(IProgressMonitor monitor) throws IOException {
+                if (snapshot.isCloned()) {
+                    // Sencha files and pages included
+                    snapshot.checkout();
+                    tracker.addTree(wwwDir);
+                } else {
+                    getWWWSources(pageInfo, tracker);
+                }
+            }
+        }.after(folders, lookUp));
+        Phase snapshotSave = graph.add(new Phase("snapshot", false, 1) {
+            void run(IProgressMonitor monitor) {
+                snapshot.save();
+            }
+        }.after(www));
+        Phase sencha = null;
+        if (pageInfo.mSenchaChecked) {
+            Phase senchaFiles = graph.add(new Phase("Sencha files", false, senchaWork) {
+                void run(IProgressMonitor monitor) throws IOException {
+                    if (!snapshot.isCloned())
+                        setupSencha(pageInfo);
+                }
+            }.after(folders, lookUp));
+            Phase senchaPages = graph.add(new Phase("Sencha pages", false, 1) {
+                void run(IProgressMonitor monitor) throws IOException {
+                    if (snapshot.isCloned())
+                        return;
+                    // Point the pages at sencha-touch.css and sencha-touch.js
+                    SENCHA_HTML_INJECTOR.rewriteAll(pageInfo.mDestinationDirectory + "/"
+                            + "assets/www", FileCopy.getParallelism());
+                }
+            }.after(www));
+            sencha = graph.add(new Phase("Sencha tracking", false, 0) {
+                void run(IProgressMonitor monitor) {
+                    tracker.addTree(pageInfo.mDestinationDirectory + "/" + "assets/www");
+                }
+            }.after(senchaFiles, senchaPages));
+            snapshotSave.after(senchaFiles, senchaPages);
+        }
+        Phase manifest = graph.add(new Phase("manifest", false, 5) {
+            void run(IProgressMonitor monitor) throws IOException {
+                phonegapizeAndroidManifest(pageInfo, tracker);
+            }
+        }.after(javaMain));
+        Phase res = graph.add(new Phase("res", false, 5) {
+            void run(IProgressMonitor monitor) throws CoreException, IOException,
+                    URISyntaxException {
+                getResFiles(monitor, pageInfo, tracker);
+            }
+        });
+        Phase javaScript = graph.add(new Phase("JavaScript", true, 5) {
+            void run(IProgressMonitor monitor) throws CoreException {
+                addJsNature(monitor, newAndroidProject);
+                configureJsIncludePath(monitor, pageInfo);
+            }
+        });
+        Phase refresh = graph.add(new Phase("refresh", true, 10) {
+            void run(IProgressMonitor monitor) throws CoreException {
+                tracker.refresh(monitor);
+            }
+        }.after(javaMain, classpath, www, manifest, res, javaScript));
+        if (sencha != null)
+            refresh.after(sencha);
+
+        graph.run("Adding PhoneGap", monitor);
+        scheduleBuild(newAndroidProject);
     }
 
     /**
-     * Find and update the main java file to kick off phonegap
-     * 
-     * @throws IOException
+     * The share of copyWork that goes to the Sencha files rather than the
+     * www sources, by their size as the installation registry knows it.
+     * Without sizes to go on it is a third, and without Sencha nothing.
      */
-    static private void updateJavaMain(String destDir) throws IOException {
-        String javaFile = findJavaFile(destDir + "src");
-        String javaFileContents = StringIO.read(javaFile);
+    static private int getSenchaWork(PageInfo pageInfo, int copyWork) {
+        if (!pageInfo.mSenchaChecked)
+            return 0;
+        InstallationRegistry registry = InstallationRegistry.getDefault();
+        InstallationRegistry.Installation sencha = registry.get(pageInfo.mSenchaDirectory);
+        long senchaBytes = sencha.getTotalBytes("resources")
+                + sencha.getTotalBytes("sencha-touch.js");
+        long wwwBytes = registry.getTotalBytes(pageInfo.mSourceDirectory);
+        if (wwwBytes < 0 || wwwBytes + senchaBytes == 0)
+            return copyWork / 3;
+        return (int) (copyWork * senchaBytes / (wwwBytes + senchaBytes));
+    }
 
-        // Import com.phonegap instead of Activity
-        javaFileContents = javaFileContents.replace("import android.app.Activity;",
-                "import com.phonegap.*;");
+    /**
+     * Builds the project incrementally in the background. Only what the
+     * refresh reported as changed is compiled, and the wizard doesn't wait.
+     */
+    static private void scheduleBuild(final IProject project) {
+        WorkspaceJob build = new WorkspaceJob("Building " + project.getName()) {
+            @Override
+            public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+                project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, monitor);
+                return Status.OK_STATUS;
+            }
 
-        // Change superclass to DroidGap instead of Activity
-        javaFileContents = javaFileContents.replace("extends Activity", "extends DroidGap");
+            @Override
+            public boolean belongsTo(Object family) {
+                // So that headless callers can wait for the builds
+                return family == ResourcesPlugin.FAMILY_MANUAL_BUILD;
+            }
+        };
+        build.setRule(project.getWorkspace().getRuleFactory().buildRule());
+        build.schedule();
+    }
 
-        // Change to start with index.html
-        javaFileContents = javaFileContents.replace("setContentView(R.layout.main);",
-                "super.loadUrl(\"file:///android_asset/www/index.html\");");
+    /**
+     * Find and update the main java file to kick off phonegap. The launcher
+     * activity named in the manifest is looked up through JDT and edited in a
+     * working copy; the file system search is only the fallback.
+     * 
+     * @throws IOException
+     */
+    static private void updateJavaMain(IProgressMonitor monitor, PageInfo pageInfo,
+            ResourceTracker tracker) throws CoreException, IOException {
+        String manifest = StringIO.read(pageInfo.mDestinationDirectory + "AndroidManifest.xml");
+        String activity = ManifestMerger.findLauncherActivity(manifest);
+        if (activity != null) {
+            IJavaProject javaProject = JavaCore.create(pageInfo.mAndroidProject);
+            IType type = javaProject.findType(activity);
+            if (type != null && type.getCompilationUnit() != null) {
+                ICompilationUnit workingCopy = type.getCompilationUnit().getWorkingCopy(monitor);
+                try {
+                    IBuffer buffer = workingCopy.getBuffer();
+                    buffer.setContents(JAVA_MAIN_REWRITER.rewrite(buffer.getContents()));
+                    workingCopy.commitWorkingCopy(true /* force */, monitor);
+                } finally {
+                    workingCopy.discardWorkingCopy();
+                }
+                return;
+            }
+        }
 
-        // Write out the file
-        StringIO.write(javaFile, javaFileContents);
+        String javaFile = findJavaFile(pageInfo.mDestinationDirectory + "src");
+        JAVA_MAIN_REWRITER.rewriteFile(javaFile);
+        tracker.addFile(javaFile);
     }
 
     // Recursively search for java file. Assuming there is only one in the new
@@ -152,19 +394,50 @@ class PhonegapProjectPopulate {
 
     /**
      * It turns out that phonegap.jar does not yet exist in a raw phonegap
-     * installation It needs to be built with the Android installation. So
-     * instead, we'll get the sources, so that it just gets build with our
-     * product. We also need to get /framework/libs/commons-codec-1.3.jar upon
-     * which the sources depend
+     * installation It needs to be built with the Android installation. So we
+     * build it ourselves, once per framework and Android target, and share it
+     * between projects. If that fails we get the sources instead, so that
+     * they just get built with our product. We also need to get
+     * /framework/libs/commons-codec-1.3.jar upon which the sources depend
      * 
-     * @throws URISyntaxException
+     * @param androidJar the target's android.jar, null if it wasn't found
+     * @return the shared phonegap.jar, or null if the sources were copied
      */
-    static private void getPhonegapJar(IProgressMonitor monitor, PageInfo pageInfo) throws CoreException,
-            IOException, URISyntaxException {
+    static private File getPhonegapJar(PageInfo pageInfo, File androidJar,
+            ResourceTracker tracker) throws IOException {
+
+        // Use the shared phonegap.jar, built once for this framework and target
+        File phonegapJar = null;
+        if (androidJar != null) {
+            try {
+                phonegapJar = FrameworkJarCache.get(pageInfo.mPhonegapDirectory, androidJar);
+            } catch (IOException e) {
+                Activator.logWarning("Can't build phonegap.jar, copying the framework sources", e);
+            }
+        }
+        if (phonegapJar == null) {
+            // Fall back to the framework sources, from the shared store. They are
+            // copied, since they are the project's sources now.
+            BlobStore store = BlobStore.getDefault();
+            String srcDir = pageInfo.mDestinationDirectory + "src";
+            store.checkout(store.ingest(pageInfo.mPhonegapDirectory + "/" + "framework" + "/"
+                    + "src"), srcDir, false /* force */, false /* link */);
+            tracker.addTree(srcDir);
+        }
+        return phonegapJar;
+    }
 
-        FileCopy.recursiveCopy(pageInfo.mPhonegapDirectory + "/" + "framework" + "/" + "src",
-                Platform.getLocation().toString() + "/" + pageInfo.mAndroidProject.getName() + "/"
-                        + "src");
+    /**
+     * Puts phonegap.jar, or the commons-codec jar the copied sources need,
+     * on the classpath.
+     */
+    static private void addFrameworkClasspath(IProgressMonitor monitor, PageInfo pageInfo,
+            File phonegapJar) throws CoreException {
+
+        // thanks to Larry Isaacs
+        // http://dev.eclipse.org/newslists/news.eclipse.webtools/msg10002.html
+        IJavaProject javaProject = (IJavaProject) pageInfo.mAndroidProject
+                .getNature(JavaCore.NATURE_ID);
 
         final String commonCodecLoc = "commons-codec-1.3.jar";
 
@@ -191,18 +464,27 @@ class PhonegapProjectPopulate {
         // <classpathentry kind="output" path="bin"/>
         // </classpath>
 
-        IJavaProject javaProject = (IJavaProject) pageInfo.mAndroidProject
-                .getNature(JavaCore.NATURE_ID); // thanks to Larry Isaacs
-                                                // http://dev.eclipse.org/newslists/news.eclipse.webtools/msg10002.html
         IClasspathEntry[] classpathList = javaProject.readRawClasspath();
         IClasspathEntry[] newClasspaths = new IClasspathEntry[classpathList.length + 1];
         System.arraycopy(classpathList, 0, newClasspaths, 0, classpathList.length);
 
         // Create the new Classpath entry
 
-        IClasspathEntry newPath = JavaCore.newLibraryEntry(new Path(pageInfo.mPhonegapDirectory
-                + "/" + "framework" + "/" + "libs" + "/" + commonCodecLoc), new Path(
-                pageInfo.mPhonegapDirectory + "/" + "framework" + "/" + "src" + "/"), null);
+        String frameworkSrc = pageInfo.mPhonegapDirectory + "/" + "framework" + "/" + "src" + "/";
+        String codecJar = pageInfo.mPhonegapDirectory + "/" + "framework" + "/" + "libs" + "/"
+                + commonCodecLoc;
+        IClasspathEntry newPath;
+        if (phonegapJar != null) {
+            // Both jars through the container that all projects of this build share
+            IPath container = PhonegapFrameworkContainer.bind(FrameworkJarCache.getVersion(
+                    pageInfo.mPhonegapDirectory, phonegapJar), FrameworkJarCache
+                    .getBuild(phonegapJar), new File[] {
+                    phonegapJar, new File(codecJar)
+            }, new File(frameworkSrc), monitor);
+            newPath = JavaCore.newContainerEntry(container);
+        } else {
+            newPath = JavaCore.newLibraryEntry(new Path(codecJar), new Path(frameworkSrc), null);
+        }
 
         newClasspaths[classpathList.length] = newPath;
 
@@ -214,167 +496,84 @@ class PhonegapProjectPopulate {
      * Get the sources from the example directory or alternative specified
      * directory Place them in assets/www Also get phonegap.js from framework
      * assets
-     * 
-     * @throws URISyntaxException
      */
-    static private void getWWWSources(IProgressMonitor monitor, PageInfo pageInfo) throws CoreException,
-            IOException, URISyntaxException {
+    static private void getWWWSources(PageInfo pageInfo, ResourceTracker tracker)
+            throws IOException {
 
-        addDefaultDirectories(pageInfo.mAndroidProject, "assets/", new String[] {
-            "www"
-        }, monitor);
-        String wwwDir = Platform.getLocation().toString() + "/"
-                + pageInfo.mAndroidProject.getName() + "/" + "assets" + "/" + "www" + "/";
+        String wwwDir = pageInfo.mDestinationDirectory + "assets" + "/" + "www" + "/";
 
-        FileCopy.recursiveCopy(pageInfo.mSourceDirectory, wwwDir);
+        // Only copy what changed since the last population of this project
+        File manifest = pageInfo.mAndroidProject.getWorkingLocation(Activator.PLUGIN_ID)
+                .append(WWW_MANIFEST).toFile();
+        FileCopy.incrementalCopy(pageInfo.mSourceDirectory, wwwDir, manifest, false);
 
         // Even though there is a phonegap.js file in the directory
         // framework/assets/www, it is WRONG!!
         // phonegap.js must be constructed from the files
         // in framework/assets/js
 
-        FileCopy.createPhonegapJs(pageInfo.mPhonegapDirectory + "/" + "framework" + "/" + "assets"
-                + "/" + "js", wwwDir + "phonegap.js");
+        // It is only rebuilt when those files change
+        BlobStore store = BlobStore.getDefault();
+        String phonegapJs = PhonegapJsCache.get(store, pageInfo.mPhonegapDirectory);
+        store.checkoutFile(phonegapJs, new File(wwwDir + "phonegap.js"), true /* force */,
+                false /* link */);
+        tracker.addTree(wwwDir);
     }
 
     /**
-     * Get sencha-touch.js and resources directory. Add references to them in
-     * index.html If kitchen sink is selected, so other copies TBD
-     * 
-     * @throws URISyntaxException
+     * Creates assets/www, and the Sencha folders in it if Sencha is wanted,
+     * for the copies to fill
      */
-    static private void setupSencha(IProgressMonitor monitor, PageInfo pageInfo) throws CoreException,
-            IOException, URISyntaxException {
-
-        addDefaultDirectories(pageInfo.mAndroidProject, "assets/www/", new String[] {
-            "sencha"
-        }, monitor);
-        addDefaultDirectories(pageInfo.mAndroidProject, "assets/www/sencha/", new String[] {
-            "resources"
+    static private void addWWWDirectories(IProgressMonitor monitor, PageInfo pageInfo)
+            throws CoreException {
+        addDefaultDirectories(pageInfo.mAndroidProject, "assets/", new String[] {
+            "www"
         }, monitor);
-        String senchaDir = pageInfo.mDestinationDirectory + "/" + "assets/www/sencha/";
-
-        FileCopy.recursiveCopy(pageInfo.mSenchaDirectory + "/resources", senchaDir + "/resources");
-
-        // Now copy the sencha-touch.js
-        FileCopy.copy(pageInfo.mSenchaDirectory + "/sencha-touch.js", senchaDir);
-
-        // Update the index.html with path to sencha-touch.css and
-        // sencha-touch.js
-        String file = pageInfo.mDestinationDirectory + "/" + "assets/www/index.html";
-        String fileContents = StringIO.read(file);
-
-        int senchaTouchCssIndex = fileContents.indexOf("/sencha-touch.css\"");
-        if (senchaTouchCssIndex > 0) {
-            int startIncludeIndex = fileContents.lastIndexOf("\"", senchaTouchCssIndex);
-            fileContents = fileContents.substring(0, startIncludeIndex) + "\"sencha/resources/css"
-                    + fileContents.substring(senchaTouchCssIndex);
-        } else { // must add a new line
-            int firstCssIndex = fileContents.indexOf(".css\"");
-            int insertSpot;
-            if (firstCssIndex > 0) {
-                insertSpot = fileContents.lastIndexOf('<', firstCssIndex);
-            } else {
-                insertSpot = fileContents.indexOf("</head>");
-            }
-            if (insertSpot <= 0) {
-                throw new IOException("setupSencha: " + "index.html does not have </head> tag");
-            }
-            // adjust insertSpot back to end of last line
-            while (Character.isWhitespace(fileContents.charAt(--insertSpot)))
-                ;
-            insertSpot++;
-
-            fileContents = fileContents.substring(0, insertSpot)
-                    + "\n      <link rel=\"stylesheet\" href=\"sencha/resources/css/sencha-touch.css\" type=\"text/css\">"
-                    + fileContents.substring(insertSpot);
+        if (pageInfo.mSenchaChecked) {
+            addDefaultDirectories(pageInfo.mAndroidProject, "assets/www/", new String[] {
+                "sencha"
+            }, monitor);
+            addDefaultDirectories(pageInfo.mAndroidProject, "assets/www/sencha/", new String[] {
+                "resources"
+            }, monitor);
         }
+    }
 
-        int senchaTouchJsIndex = fileContents.indexOf("/sencha-touch.js\"");
-        if (senchaTouchJsIndex > 0) {
-            int startIncludeIndex = fileContents.lastIndexOf("\"", senchaTouchJsIndex);
-            fileContents = fileContents.substring(0, startIncludeIndex) + "\"sencha"
-                    + fileContents.substring(senchaTouchJsIndex);
-        } else { // must add a new line
-            int firstJsIndex = fileContents.indexOf(".js\"");
-            int insertSpot;
-            if (firstJsIndex > 0) {
-                insertSpot = fileContents.lastIndexOf('<', firstJsIndex);
-            } else {
-                insertSpot = fileContents.indexOf("</head>");
-            }
-            // Failure case already caught in css section
+    /**
+     * Get sencha-touch.js and resources directory. The references to them
+     * in index.html are added once the www sources are there. If kitchen
+     * sink is selected, so other copies TBD
+     */
+    static private void setupSencha(PageInfo pageInfo) throws IOException {
 
-            // adjust insertSpot back to end of last line
-            while (Character.isWhitespace(fileContents.charAt(--insertSpot)))
-                ;
-            insertSpot++;
+        String senchaDir = pageInfo.mDestinationDirectory + "/" + "assets/www/sencha/";
 
-            fileContents = fileContents.substring(0, insertSpot)
-                    + "\n      <script type=\"text/javascript\" src=\"sencha/sencha-touch.js\"></script>"
-                    + fileContents.substring(insertSpot);
-        }
+        BlobStore store = BlobStore.getDefault();
+        // Copied, not linked: the project is free to edit its Sencha files
+        store.checkout(store.ingest(pageInfo.mSenchaDirectory + "/resources"), senchaDir
+                + "/resources", false /* force */, false /* link */);
 
-        // Write out the file
-        StringIO.write(file, fileContents);
+        // Now copy the sencha-touch.js
+        File senchaJs = new File(pageInfo.mSenchaDirectory + "/sencha-touch.js");
+        store.checkoutFile(store.ingestFile(senchaJs), new File(senchaDir + "sencha-touch.js"),
+                false /* force */, false /* link */);
     }
 
     /**
      * Get the Android Manifest file and tweak it for phonegap
-     * 
-     * @throws URISyntaxException
      */
-    static private void phonegapizeAndroidManifest(PageInfo pageInfo) throws CoreException, IOException,
-            URISyntaxException {
-
-        String destFile = pageInfo.mDestinationDirectory + "AndroidManifest.xml";
-        String sourceFile = pageInfo.mPhonegapDirectory + "/" + "framework" + "/"
-                + "AndroidManifest.xml";
-        String sourceFileContents = StringIO.read(sourceFile);
-        String manifestInsert = getManifestScreensAndPermissions(sourceFileContents);
-        String destFileContents = StringIO.read(destFile);
-
-        // Add phonegap screens, permissions and turn on debuggable
-        destFileContents = destFileContents.replace("<application android:", manifestInsert
-                + "<application" + " android:debuggable=\"true\" android:");
-
-        // Add android:configChanges="orientation|keyboardHidden" to the
-        // activity
-        destFileContents = destFileContents.replace("<activity android:",
-                "<activity android:configChanges=\"orientation|keyboardHidden\" android:");
-
-        if (destFileContents.indexOf("<uses-sdk") < 0) {
-            // User did not set min SDK, so use the phonegap template manifest
-            // version
-            int startIndex = sourceFileContents.indexOf("<uses-sdk");
-            int endIndex = sourceFileContents.indexOf("<", startIndex + 1);
-            destFileContents = destFileContents.replace("</manifest>",
-                    sourceFileContents.substring(startIndex, endIndex) + "</manifest>");
+    static private void phonegapizeAndroidManifest(PageInfo pageInfo, ResourceTracker tracker)
+            throws IOException {
+        File sourceFile = new File(pageInfo.mPhonegapDirectory + "/" + "framework" + "/"
+                + "AndroidManifest.xml");
+        ManifestMerger.Fragment fragment = ManifestMerger.Fragment.forManifest(sourceFile);
+        if (fragment.isEmpty()) {
+            // Nothing to go on in this installation, so use our own list
+            fragment = ManifestMerger.Fragment.getTemplate();
         }
-        // Write out the file
-        StringIO.write(destFile, destFileContents);
-    }
-
-    /**
-     * Helper Function for phonegapizeAndroidManifest It finds the big middle
-     * section that needs to be added to the manifest for phonegap
-     */
-
-    static private String getManifestScreensAndPermissions(String manifest) {
-        int startIndex;
-        startIndex = manifest.indexOf("<supports-screens");
-        if (startIndex == -1)
-            startIndex = manifest.indexOf("<uses-permissions");
-        if (startIndex == -1)
-            return null;
-        int index = startIndex;
-        int lastIndex;
-        do {
-            lastIndex = index;
-            index = manifest.indexOf("<uses-permission", index + 1);
-        } while (index > 0);
-        lastIndex = manifest.indexOf('<', lastIndex + 1);
-        return manifest.substring(startIndex, lastIndex);
+        String destFile = pageInfo.mDestinationDirectory + "AndroidManifest.xml";
+        new ManifestMerger(fragment).mergeFile(destFile);
+        tracker.addFile(destFile);
     }
 
     /**
@@ -383,21 +582,26 @@ class PhonegapProjectPopulate {
      * 
      * @throws URISyntaxException
      */
-    static private void getResFiles(IProgressMonitor monitor, PageInfo pageInfo) throws CoreException,
-            IOException, URISyntaxException {
+    static private void getResFiles(IProgressMonitor monitor, PageInfo pageInfo,
+            ResourceTracker tracker) throws CoreException, IOException, URISyntaxException {
 
         String sourceResDir = pageInfo.mPhonegapDirectory + "/" + "framework" + "/" + "res" + "/";
         String destResDir = pageInfo.mDestinationDirectory + "res" + "/";
 
-        FileCopy.recursiveForceCopy(sourceResDir + "layout" + "/", destResDir + "layout" + "/");
+        // Copied rather than linked: these are the project's own resources
+        BlobStore store = BlobStore.getDefault();
+        store.checkout(store.ingest(sourceResDir + "layout"), destResDir + "layout",
+                true /* force */, false /* link */);
+        tracker.addTree(destResDir + "layout");
 
         // Copy source drawable to all of the project drawable* directories
-        String sourceDrawableDir = sourceResDir + "drawable" + "/";
+        Map<String, String> drawables = store.ingest(sourceResDir + "drawable");
         File destFile = new File(destResDir);
         String fList[] = destFile.list();
         for (String s : fList) {
             if (s.indexOf("drawable") == 0) {
-                FileCopy.recursiveForceCopy(sourceDrawableDir, destResDir + s);
+                store.checkout(drawables, destResDir + s, true /* force */, false /* link */);
+                tracker.addTree(destResDir + s);
             }
         }
     }
@@ -449,4 +653,51 @@ class PhonegapProjectPopulate {
             project.setDescription(description, new SubProgressMonitor(monitor, 10));
         }
     }
+
+    /**
+     * Keep JSDT away from the vendor libraries. phonegap.js and the sencha
+     * directory are excluded from the JavaScript source path, so they are
+     * neither validated nor indexed as project sources; they are put on the
+     * include path as libraries instead. sencha-touch.js is taken from the
+     * Sencha installation, so that every project shares its index.
+     */
+    static private void configureJsIncludePath(IProgressMonitor monitor, PageInfo pageInfo)
+            throws CoreException {
+        IProject project = pageInfo.mAndroidProject;
+        List<IPath> vendor = new ArrayList<IPath>();
+        vendor.add(project.getFullPath().append("assets/www/phonegap.js"));
+        if (pageInfo.mSenchaChecked)
+            vendor.add(project.getFullPath().append("assets/www/sencha").addTrailingSeparator());
+
+        IJavaScriptProject jsProject = JavaScriptCore.create(project);
+        List<IIncludePathEntry> entries = new ArrayList<IIncludePathEntry>();
+        for (IIncludePathEntry entry : jsProject.getRawIncludepath()) {
+            if (entry.getEntryKind() != IIncludePathEntry.CPE_SOURCE) {
+                entries.add(entry);
+                continue;
+            }
+            List<IPath> exclusions = new ArrayList<IPath>(Arrays.asList(entry
+                    .getExclusionPatterns()));
+            for (IPath path : vendor) {
+                if (entry.getPath().isPrefixOf(path)) {
+                    IPath pattern = path.removeFirstSegments(entry.getPath().segmentCount());
+                    if (path.hasTrailingSeparator())
+                        pattern = pattern.addTrailingSeparator();
+                    if (!exclusions.contains(pattern))
+                        exclusions.add(pattern);
+                }
+            }
+            // JSDT source entries have no output location of their own
+            entries.add(JavaScriptCore.newSourceEntry(entry.getPath(), entry.getInclusionPatterns(),
+                    exclusions.toArray(new IPath[exclusions.size()]), null,
+                    entry.getExtraAttributes()));
+        }
+        entries.add(JavaScriptCore.newLibraryEntry(vendor.get(0), null, null));
+        if (pageInfo.mSenchaChecked) {
+            entries.add(JavaScriptCore.newLibraryEntry(new Path(pageInfo.mSenchaDirectory + "/"
+                    + "sencha-touch.js"), null, null));
+        }
+        jsProject.setRawIncludepath(entries.toArray(new IIncludePathEntry[entries.size()]),
+                new SubProgressMonitor(monitor, 5));
+    }
 }
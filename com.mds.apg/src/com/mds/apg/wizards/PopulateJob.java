@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+
+import com.mds.apg.Activator;
+
+/**
+ * Populates a new project as a cancelable background job, so the wizard can
+ * close at once. A failure is put on the project as a problem marker, and
+ * the returned error status ends up in the error log. The marker of an
+ * earlier failure is removed when the job runs again.
+ */
+class PopulateJob extends Job {
+
+    static final String PROBLEM_MARKER = Activator.PLUGIN_ID + ".populateProblem";
+
+    private final PageInfo mPageInfo;
+
+    PopulateJob(PageInfo pageInfo) {
+        super("Adding PhoneGap to " + pageInfo.mAndroidProject.getName());
+        mPageInfo = pageInfo;
+        setUser(true);
+        setPriority(LONG);
+    }
+
+    @Override
+    protected IStatus run(IProgressMonitor monitor) {
+        try {
+            mPageInfo.mAndroidProject.deleteMarkers(PROBLEM_MARKER, false, IResource.DEPTH_ZERO);
+        } catch (CoreException e) {
+            // The project is gone, the population reports that
+        }
+        try {
+            PhonegapProjectPopulate.createProjectAsync(monitor, mPageInfo);
+            return Status.OK_STATUS;
+        } catch (OperationCanceledException e) {
+            return Status.CANCEL_STATUS;
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getTargetException();
+            String msg = t.getMessage() == null ? t.toString() : t.getMessage();
+            addProblem(msg);
+            return new Status(IStatus.ERROR, Activator.PLUGIN_ID, "PhoneGap population of "
+                    + mPageInfo.mAndroidProject.getName() + " failed: " + msg, t);
+        }
+    }
+
+    private void addProblem(String msg) {
+        try {
+            IMarker marker = mPageInfo.mAndroidProject.createMarker(PROBLEM_MARKER);
+            marker.setAttribute(IMarker.MESSAGE, "PhoneGap: " + msg);
+            marker.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_ERROR);
+            marker.setAttribute(IMarker.LOCATION, mPageInfo.mAndroidProject.getName());
+        } catch (CoreException e) {
+            // The project is gone, the error log still gets the failure
+        }
+    }
+
+    @Override
+    public boolean belongsTo(Object family) {
+        return family == PopulateJob.class || family == mPageInfo.mAndroidProject;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import com.mds.apg.Activator;
+
+/**
+ * Snapshots of the www tree that a population produces. The first project
+ * made from a given PhoneGap, Sencha and sources records the blob hashes of
+ * its assets/www; the next ones check them out of the BlobStore instead of
+ * copying the sources, building phonegap.js and rewriting the pages again.
+ * What depends on the project itself (manifest, main activity, classpath,
+ * res) is still done for every project.
+ *
+ * A snapshot is named after a hash of the PageInfo inputs and the content
+ * hashes of the files they point to, so any change to those makes a new one.
+ */
+final class ProjectSnapshot {
+
+    private static final String SNAPSHOT_DIR = "snapshots";
+
+    /** Bump when what a population puts in assets/www changes */
+    private static final String FORMAT = "1";
+
+    private final PageInfo mPageInfo;
+    private final String mWWWDir;
+    private String mKey;
+    private boolean mFresh; // no www files before the population
+    private Map<String, String> mTree; // set if the project is cloned
+
+    ProjectSnapshot(PageInfo pageInfo, String wwwDir) {
+        mPageInfo = pageInfo;
+        mWWWDir = wwwDir;
+    }
+
+    /**
+     * Looks for the snapshot of these inputs. Only a project without www
+     * files is cloned, so populating an existing project never overwrites
+     * what the user changed there. Empty folders don't count, so it doesn't
+     * matter whether the population has created its own yet.
+     *
+     * @return whether the project is cloned from a snapshot
+     */
+    boolean lookUp() {
+        mFresh = !hasFiles(new File(mWWWDir));
+        if (!mFresh)
+            return false; // neither cloned nor saved, so no key is needed
+        try {
+            mKey = computeKey();
+            mTree = load();
+        } catch (IOException e) {
+            // The project is populated in full instead
+            Activator.logWarning("Can't look up the snapshot of " + mWWWDir, e);
+            mKey = null;
+            mTree = null;
+        }
+        return mTree != null;
+    }
+
+    boolean isCloned() {
+        return mTree != null;
+    }
+
+    /**
+     * Checks the snapshot out into the www directory. Every file is copied,
+     * as they all are the project's own files now.
+     */
+    void checkout() throws IOException {
+        BlobStore.getDefault().checkout(mTree, mWWWDir, false /* force */, false /* link */);
+    }
+
+    /**
+     * Records the populated www directory as the snapshot of these inputs,
+     * unless it came from one or held files of its own before. A failure
+     * only costs the next project a full population.
+     */
+    void save() {
+        if (mKey == null || !mFresh || mTree != null)
+            return;
+        try {
+            Map<String, String> tree = BlobStore.getDefault().ingest(mWWWDir);
+            Properties snapshot = new Properties();
+            snapshot.putAll(tree);
+            File file = snapshotFile(mKey);
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+                throw new IOException("ProjectSnapshot: " + "directory Creation Failed: " + dir);
+
+            // Written under a temporary name so a snapshot is never seen half written
+            File temp = File.createTempFile(mKey, ".tmp", dir);
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    snapshot.store(out, mPageInfo.mSourceDirectory);
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file) && !file.isFile())
+                    throw new IOException("ProjectSnapshot: " + "cannot create " + file);
+            } finally {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Activator.logWarning("Can't save the snapshot of " + mWWWDir, e);
+        }
+    }
+
+    /**
+     * The sources are walked and hashed, as the user may have edited them
+     * anywhere, but not put in the store; the installations come from the
+     * registry, checked against the disk.
+     */
+    private String computeKey() throws IOException {
+        InstallationRegistry registry = InstallationRegistry.getDefault();
+        StringBuilder key = new StringBuilder();
+        key.append("format=").append(FORMAT).append('\n');
+        key.append("sencha=").append(mPageInfo.mSenchaChecked).append(',')
+                .append(mPageInfo.mSenchaKitchenSink).append('\n');
+        appendTree(key, "source", hashTree(mPageInfo.mSourceDirectory));
+        appendTree(key, "js", registry.getChecked(mPageInfo.mPhonegapDirectory,
+                "framework/assets/js").getTree("framework/assets/js"));
+        if (mPageInfo.mSenchaChecked) {
+            appendTree(key, "sencha", registry.getChecked(mPageInfo.mSenchaDirectory,
+                    "resources").getTree("resources"));
+            key.append("sencha-touch.js=").append(
+                    ContentHash.of(new File(mPageInfo.mSenchaDirectory + "/sencha-touch.js")))
+                    .append('\n');
+        }
+        return ContentHash.of(key.toString());
+    }
+
+    /** The files below dirName, as BlobStore.ingest would return them */
+    private static Map<String, String> hashTree(String dirName) throws IOException {
+        CopyPlan plan = CopyPlan.scan(dirName);
+        Map<String, String> tree = new TreeMap<String, String>();
+        for (CopyPlan.Entry file : plan.getFiles())
+            tree.put(file.getPath(), ContentHash.of(new File(plan.getRoot(), file.getPath())));
+        return tree;
+    }
+
+    private static boolean hasFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() || hasFiles(file))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendTree(StringBuilder key, String name, Map<String, String> tree) {
+        for (Map.Entry<String, String> file : tree.entrySet()) {
+            key.append(name).append('/').append(file.getKey()).append('=').append(
+                    file.getValue()).append('\n');
+        }
+    }
+
+    /** The snapshot of mKey, or null if there is none or its blobs were evicted */
+    private Map<String, String> load() throws IOException {
+        File file = snapshotFile(mKey);
+        if (!file.isFile())
+            return null;
+        Properties snapshot = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            snapshot.load(in);
+        } finally {
+            in.close();
+        }
+        BlobStore store = BlobStore.getDefault();
+        Map<String, String> tree = new TreeMap<String, String>();
+        for (String path : snapshot.stringPropertyNames()) {
+            String hash = snapshot.getProperty(path);
+            if (!store.contains(hash))
+                return null;
+            tree.put(path, hash);
+        }
+        return tree.isEmpty() ? null : tree;
+    }
+
+    private static File snapshotFile(String key) {
+        return Activator.getDefault().getStateLocation().append(SNAPSHOT_DIR).append(
+                key + ".properties").toFile();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.SubProgressMonitor;
+
+/**
+ * Remembers what was written to a project behind the workspace's back, so
+ * that only those files and trees need to be refreshed afterwards.
+ */
+class ResourceTracker {
+
+    private final IProject mProject;
+    private final IPath mLocation;
+    private final TreeSet<String> mFiles = new TreeSet<String>();
+    private final TreeSet<String> mTrees = new TreeSet<String>();
+
+    ResourceTracker(IProject project) {
+        mProject = project;
+        mLocation = project.getLocation();
+    }
+
+    /** Notes a single file, given by its file system path */
+    synchronized void addFile(String fileName) {
+        String path = toProjectPath(fileName);
+        if (path != null)
+            mFiles.add(path);
+    }
+
+    /** Notes a directory whose whole content may have changed */
+    synchronized void addTree(String dirName) {
+        String path = toProjectPath(dirName);
+        if (path != null)
+            mTrees.add(path);
+    }
+
+    /**
+     * Refreshes the noted files and trees. Anything inside a noted tree is
+     * covered by the refresh of that tree.
+     */
+    synchronized void refresh(IProgressMonitor monitor) throws CoreException {
+        List<String> trees = new ArrayList<String>();
+        for (String tree : mTrees) {
+            if (!isCovered(tree, trees))
+                trees.add(tree);
+        }
+        List<String> files = new ArrayList<String>();
+        for (String file : mFiles) {
+            if (!isCovered(file, trees))
+                files.add(file);
+        }
+
+        monitor.beginTask("Refresh", trees.size() + files.size());
+        try {
+            for (String tree : trees) {
+                IResource resource = tree.length() == 0 ? mProject : mProject.getFolder(tree);
+                refresh(resource, new SubProgressMonitor(monitor, 1));
+            }
+            for (String file : files) {
+                refresh(mProject.getFile(file), new SubProgressMonitor(monitor, 1));
+            }
+        } finally {
+            monitor.done();
+        }
+        mFiles.clear();
+        mTrees.clear();
+    }
+
+    /**
+     * Refreshes the resource, or its nearest ancestor that the workspace
+     * can add it from.
+     */
+    private void refresh(IResource resource, IProgressMonitor monitor) throws CoreException {
+        while (!resource.exists() && resource.getType() != IResource.PROJECT
+                && !resource.getParent().exists()) {
+            resource = resource.getParent();
+        }
+        resource.refreshLocal(resource.getType() == IResource.FILE ? IResource.DEPTH_ZERO
+                : IResource.DEPTH_INFINITE, monitor);
+    }
+
+    private static boolean isCovered(String path, List<String> trees) {
+        for (String tree : trees) {
+            if (tree.length() == 0 || path.equals(tree) || path.startsWith(tree + "/"))
+                return true;
+        }
+        return false;
+    }
+
+    /** The project relative path, or null if outside the project */
+    private String toProjectPath(String fileName) {
+        IPath path = new Path(fileName);
+        if (!mLocation.isPrefixOf(path))
+            return null;
+        return path.removeFirstSegments(mLocation.segmentCount()).removeTrailingSeparator()
+                .toString();
+    }
+}
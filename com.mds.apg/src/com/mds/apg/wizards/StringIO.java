@@ -1,31 +1,121 @@
 package com.mds.apg.wizards;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
 
 public class StringIO {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final CopyStatistics sStatistics = new CopyStatistics();
+
+    /** The content of a text file, and the charset it was read with */
+    public static final class Text {
+        public final String mContent;
+        public final Charset mCharset;
+
+        Text(String content, Charset charset) {
+            mContent = content;
+            mCharset = charset;
+        }
+    }
+
     /**
-     * Reads and returns the content of a text file 
-     * @param filepath the file path to the text file
-     * @return null if the file could not be read
-     * @throws IOException 
+     * Reads and returns the content of a text file exactly as it is, line
+     * endings included. See readText.
+     * @param fileString the file path to the text file
      */
     public static String read(String fileString) throws IOException {
+        return readText(fileString).mContent;
+    }
 
-        File file = new File(fileString);
-        BufferedReader reader = new BufferedReader(new FileReader(file));
-        String line = "", output = "";
-        while((line = reader.readLine()) != null)
-        {
-            output += line + "\r\n";
+    /**
+     * Reads a text file as UTF-8, or as ISO-8859-1 if it isn't valid UTF-8,
+     * like a page saved in Latin-1. Writing the content back with the same
+     * charset gives back the same bytes. Runs in time linear in the file
+     * size.
+     * @param fileString the file path to the text file
+     */
+    public static Text readText(String fileString) throws IOException {
+
+        FileInputStream in = new FileInputStream(fileString);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("StringIO: " + "file too large: " + fileString);
+            ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining() && channel.read(bytes) != -1)
+                ;
+            bytes.flip();
+            try {
+                return new Text(UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(bytes).toString(), UTF_8);
+            } catch (CharacterCodingException e) {
+                // Every byte is a character in ISO-8859-1
+                bytes.rewind();
+                return new Text(ISO_8859_1.decode(bytes).toString(), ISO_8859_1);
+            }
+        } finally {
+            in.close();
         }
-        reader.close();
-        return output;
     }
     
+    /**
+     * Writes output to the file as UTF-8, replacing what was there. If the
+     * file already holds exactly those bytes it is left untouched (see
+     * FileCopy.setCompareBeforeWrite).
+     */
     public static void write(String fileString, String output) throws IOException {
-        FileWriter writer = new FileWriter(fileString);
-        writer.write(output);
-        writer.close();
-    } 
-}
\ No newline at end of file
+        write(fileString, output, UTF_8);
+    }
+
+    /**
+     * Writes output to the file in the given charset, which for a rewrite
+     * is the one readText read it with. Otherwise as write above.
+     */
+    public static void write(String fileString, String output, Charset charset)
+            throws IOException {
+        ByteBuffer bytes;
+        try {
+            bytes = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .encode(CharBuffer.wrap(output));
+        } catch (CharacterCodingException e) {
+            IOException ioe = new IOException("StringIO: " + "text can't be written as "
+                    + charset.name() + ": " + fileString);
+            ioe.initCause(e);
+            throw ioe;
+        }
+        File file = new File(fileString);
+        long size = bytes.remaining();
+        if (FileCopy.isCompareBeforeWrite() && file.isFile() && FileCopy.sameContent(file, bytes)) {
+            sStatistics.recordSkip(size);
+            return;
+        }
+        long start = System.nanoTime();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        } finally {
+            out.close();
+        }
+        sStatistics.record(size, System.nanoTime() - start);
+    }
+
+    /** Counts of the writes done and skipped so far */
+    public static CopyStatistics getStatistics() {
+        return sStatistics;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2010-11 Mobile Developer Solutions
+ *
+ * Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/org/documents/epl-v10.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mds.apg.wizards;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies a set of literal and regular expression replacements to a text in
+ * one pass. Literal rules are matched together with an Aho-Corasick
+ * automaton; regex rules use their precompiled patterns.
+ * <p>
+ * Scanning left to right, the match that starts first wins; when several
+ * rules match at the same place, the rule added first wins. Replaced text is
+ * not scanned again, so one rule's output never feeds another rule. Regex
+ * replacements are expanded as by Matcher.replaceAll, with $n group
+ * references and backslash escapes; literal replacements are used as they
+ * are.
+ * <p>
+ * Add all rules before the first rewrite. After that the rewriter can be
+ * shared between threads.
+ */
+public class TextRewriter {
+
+    private final List<Object> mRules = new ArrayList<Object>(); // String or Pattern
+    private final List<String> mReplacements = new ArrayList<String>();
+    private Node mRoot; // built on first use
+    private int mMaxLiteral;
+
+    /** Trie node of the Aho-Corasick automaton */
+    private static final class Node {
+        final Map<Character, Node> mNext = new HashMap<Character, Node>();
+        Node mFail;
+        Node mOutput; // nearest node on the fail chain that ends a literal
+        int mRule = -1; // lowest rule ending here, -1 if none
+        int mDepth;
+    }
+
+    /** Adds a rule replacing every occurrence of from with to. @return the rule index */
+    public synchronized int addLiteral(String from, String to) {
+        if (mRoot != null)
+            throw new IllegalStateException("TextRewriter: rules can't be added after use");
+        if (from.length() == 0)
+            throw new IllegalArgumentException("TextRewriter: empty literal");
+        mRules.add(from);
+        mReplacements.add(to);
+        return mRules.size() - 1;
+    }
+
+    /** Adds a rule replacing every match of pattern with replacement. @return the rule index */
+    public synchronized int addRegex(Pattern pattern, String replacement) {
+        if (mRoot != null)
+            throw new IllegalStateException("TextRewriter: rules can't be added after use");
+        mRules.add(pattern);
+        mReplacements.add(replacement);
+        return mRules.size() - 1;
+    }
+
+    public int getRuleCount() {
+        return mRules.size();
+    }
+
+    /**
+     * Rewrites input into output.
+     * 
+     * @return the number of matches of each rule, by rule index
+     */
+    public int[] rewrite(CharSequence input, StringBuilder output) {
+        Node root = getAutomaton();
+        int ruleCount = mRules.size();
+        int[] counts = new int[ruleCount];
+
+        Matcher[] matchers = new Matcher[ruleCount];
+        int[] regexStart = new int[ruleCount]; // -1: no further match
+        for (int r = 0; r < ruleCount; r++) {
+            if (mRules.get(r) instanceof Pattern) {
+                matchers[r] = ((Pattern) mRules.get(r)).matcher(input);
+                regexStart[r] = matchers[r].find() ? matchers[r].start() : -1;
+            }
+        }
+
+        int[] literal = root.mNext.isEmpty() ? null : findLiteral(root, input, 0);
+        int pos = 0;
+        int length = input.length();
+        while (true) {
+            // Pick the earliest match; ties go to the lower rule index
+            int rule = -1;
+            int start = Integer.MAX_VALUE;
+            if (literal != null) {
+                rule = literal[1];
+                start = literal[0];
+            }
+            for (int r = 0; r < ruleCount; r++) {
+                if (matchers[r] != null && regexStart[r] >= 0
+                        && (regexStart[r] < start || (regexStart[r] == start && r < rule))) {
+                    rule = r;
+                    start = regexStart[r];
+                }
+            }
+            if (rule < 0)
+                break;
+
+            output.append(input, pos, start);
+            int end;
+            if (matchers[rule] != null) {
+                end = matchers[rule].end();
+                appendReplacement(output, matchers[rule], mReplacements.get(rule));
+                if (end == start) { // empty match: keep moving
+                    if (end < length)
+                        output.append(input.charAt(end));
+                    end++;
+                }
+            } else {
+                end = start + ((String) mRules.get(rule)).length();
+                output.append(mReplacements.get(rule));
+            }
+            counts[rule]++;
+            pos = end;
+            if (pos > length)
+                break;
+
+            // Drop candidates the replacement consumed
+            if (literal != null && literal[0] < pos)
+                literal = findLiteral(root, input, pos);
+            for (int r = 0; r < ruleCount; r++) {
+                if (matchers[r] != null && regexStart[r] >= 0 && regexStart[r] < pos) {
+                    regexStart[r] = matchers[r].find(pos) ? matchers[r].start() : -1;
+                }
+            }
+        }
+        if (pos < length)
+            output.append(input, pos, length);
+        return counts;
+    }
+
+    /** Rewrites input, discarding the match counts */
+    public String rewrite(CharSequence input) {
+        StringBuilder output = new StringBuilder(input.length() + 256);
+        rewrite(input, output);
+        return output.toString();
+    }
+
+    /**
+     * Rewrites a text file in place, keeping its charset. The file is only
+     * written if some rule matched.
+     * 
+     * @return the number of matches of each rule
+     */
+    public int[] rewriteFile(String fileName) throws IOException {
+        StringIO.Text input = StringIO.readText(fileName);
+        StringBuilder output = new StringBuilder(input.mContent.length() + 256);
+        int[] counts = rewrite(input.mContent, output);
+        for (int count : counts) {
+            if (count > 0) {
+                StringIO.write(fileName, output.toString(), input.mCharset);
+                break;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The leftmost literal match starting at or after from, as {start, rule}.
+     * Once a match is seen, scanning goes on for as long as a longer literal
+     * could still start earlier.
+     */
+    private int[] findLiteral(Node root, CharSequence input, int from) {
+        int[] best = null;
+        int limit = input.length();
+        Node state = root;
+        for (int i = from; i < limit; i++) {
+            char c = input.charAt(i);
+            Node next;
+            while ((next = state.mNext.get(c)) == null && state != root)
+                state = state.mFail;
+            state = next != null ? next : root;
+
+            Node first = state.mRule >= 0 ? state : state.mOutput;
+            for (Node out = first; out != null; out = out.mOutput) {
+                int start = i - out.mDepth + 1;
+                if (best == null || start < best[0] || (start == best[0] && out.mRule < best[1])) {
+                    best = new int[] { start, out.mRule };
+                }
+            }
+            if (best != null && limit > best[0] + mMaxLiteral) {
+                limit = best[0] + mMaxLiteral; // nothing ending later can start earlier
+            }
+        }
+        return best;
+    }
+
+    private synchronized Node getAutomaton() {
+        if (mRoot == null) {
+            Node root = new Node();
+            for (int r = 0; r < mRules.size(); r++) {
+                if (mRules.get(r) instanceof String) {
+                    String literal = (String) mRules.get(r);
+                    mMaxLiteral = Math.max(mMaxLiteral, literal.length());
+                    Node node = root;
+                    for (int i = 0; i < literal.length(); i++) {
+                        Character c = Character.valueOf(literal.charAt(i));
+                        Node next = node.mNext.get(c);
+                        if (next == null) {
+                            next = new Node();
+                            next.mDepth = node.mDepth + 1;
+                            node.mNext.put(c, next);
+                        }
+                        node = next;
+                    }
+                    if (node.mRule < 0)
+                        node.mRule = r;
+                }
+            }
+
+            // Breadth first, so fail targets are complete before they're used
+            LinkedList<Node> queue = new LinkedList<Node>();
+            for (Node child : root.mNext.values()) {
+                child.mFail = root;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                Node node = queue.removeFirst();
+                for (Map.Entry<Character, Node> edge : node.mNext.entrySet()) {
+                    Node child = edge.getValue();
+                    Node fail = node.mFail;
+                    while (fail != root && !fail.mNext.containsKey(edge.getKey()))
+                        fail = fail.mFail;
+                    Node target = fail.mNext.get(edge.getKey());
+                    child.mFail = target != null && target != child ? target : root;
+                    child.mOutput = child.mFail.mRule >= 0 ? child.mFail : child.mFail.mOutput;
+                    queue.add(child);
+                }
+            }
+            mRoot = root;
+        }
+        return mRoot;
+    }
+
+    /**
+     * Expands the replacement as Matcher.appendReplacement does, so a regex
+     * rule gives what String.replaceAll gave: a backslash quotes the next
+     * character, $n takes the longest number that still names a group, and
+     * a stray $ or a trailing backslash is an IllegalArgumentException.
+     */
+    private static void appendReplacement(StringBuilder output, Matcher matcher,
+            String replacement) {
+        int length = replacement.length();
+        for (int i = 0; i < length; i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                if (++i == length)
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                output.append(replacement.charAt(i));
+            } else if (c == '$') {
+                if (++i == length)
+                    throw new IllegalArgumentException(
+                            "Illegal group reference: group index is missing");
+                int group = replacement.charAt(i) - '0';
+                if (group < 0 || group > 9)
+                    throw new IllegalArgumentException("Illegal group reference");
+                // Take more digits while they still name a group
+                while (i + 1 < length) {
+                    int digit = replacement.charAt(i + 1) - '0';
+                    int longer = group * 10 + digit;
+                    if (digit < 0 || digit > 9 || longer > matcher.groupCount())
+                        break;
+                    group = longer;
+                    i++;
+                }
+                String text = matcher.group(group); // IndexOutOfBoundsException if no such group
+                if (text != null)
+                    output.append(text);
+            } else {
+                output.append(c);
+            }
+        }
+    }
+}
@@ -164,7 +164,7 @@ abstract public class WizardSection {
         if (!mInternalPathUpdate) {
             String newPath = getValue();
             setStaticSave(newPath);
-            mWizardPage.validatePageComplete();
+            mWizardPage.scheduleValidation();
         }
     }
   